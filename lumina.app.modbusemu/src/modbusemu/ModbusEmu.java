@@ -1,20 +1,32 @@
 package modbusemu;
 
+import java.io.File;
+import java.util.Map;
 import java.util.Properties;
 
 import modbus.slave.ModbusDataType;
 import modbus.slave.ModbusSlaveLib;
+import modbus.slave.RegisterOrder;
+import modbus.slave.SlaveTransport;
 import modbus.slave.exception.InvalidSlaveException;
+import modbusemu.control.ControlServer;
+import modbusemu.exception.DatabaseConnectionException;
 import modbusemu.exception.PropertiesLoadingException;
+import modbusemu.exception.TraceFileException;
 import modbusemu.memorymap.DelayedMemoryMap;
-import modbusemu.memorymap.DelayedMemoryMap.IWriteListener;
+import modbusemu.memorymap.IBatchWriteListener;
+import modbusemu.memorymap.databaseconnector.DBConnector;
 import modbusemu.memorymap.databaseconnector.PSQLConnector;
+import modbusemu.memorymap.trace.TraceCompiler;
 
 /**
  * The Data Transfer Application class.
  */
 public final class ModbusEmu {
 
+    /** The optional file with the register order of the datapoints. */
+    private static final String REGISTER_ORDERS_FILE = "conf/modbusRegisterOrders.json";
+
     private ModbusEmu() {
     }
 
@@ -24,9 +36,14 @@ public final class ModbusEmu {
             final int port = Integer.parseInt(props.getProperty("md_port"));
                         
             final DelayedMemoryMap memoryMap = new DelayedMemoryMap();
-            final ModbusSlaveLib slaveLib = new ModbusSlaveLib(port);
+            final SlaveTransport transport = SlaveTransport.valueOf(
+                    props.getProperty("md_transport", "modbus4j").toUpperCase());
+            final int ioThreads = Integer.parseInt(props.getProperty("md_io_threads", "0"));
+            final ModbusSlaveLib slaveLib = new ModbusSlaveLib(port, transport, ioThreads,
+                    Boolean.parseBoolean(props.getProperty("md_seqlock_images")));
+            setRegisterOrders(slaveLib);
 
-            memoryMap.addListener(new IWriteListener() {
+            memoryMap.addListener(new IBatchWriteListener() {
                 @Override
                 public void onWrite(int slaveId, int nRegister, long value, DelayedMemoryMap client) {
                     try {
@@ -35,14 +52,67 @@ public final class ModbusEmu {
                         System.err.println("Modbus registry could not be written");
                     }
                 }
+
+                @Override
+                public void onBatchWrite(int slaveId, int[] registers, long[] values, int count,
+                        DelayedMemoryMap client) {
+                    try {
+                        slaveLib.setInputRegisters(slaveId, registers, values, count, ModbusDataType.LONG);
+                    } catch (InvalidSlaveException e) {
+                        System.err.println("Modbus registry could not be written");
+                    }
+                }
             });
 
-            memoryMap.open(new PSQLConnector(), props);
+            final DBConnector dbConnector = new PSQLConnector();
+            if ("compile".equals(props.getProperty("trace_mode"))) {
+                new TraceCompiler(dbConnector, props).compile();
+            }
+
+            memoryMap.open(dbConnector, props);
+
+            final int controlPort = Integer.parseInt(props.getProperty("control_port", "0"));
+            if (controlPort > 0) {
+                new ControlServer(memoryMap, controlPort).start();
+            }
             slaveLib.runModbusTcpSlave();
         } catch (InterruptedException e) {
             System.err.println("Modbus slave was interrupted");
         } catch (PropertiesLoadingException e) {
             System.err.println(e.getMessage());
+        } catch (DatabaseConnectionException e) {
+            System.err.println(e.getMessage());
+        } catch (TraceFileException e) {
+            System.err.println(e.getMessage());
+        } catch (InvalidSlaveException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the byte and word order of the registers of the datapoints listed in the optional
+     * register orders file, as big_endian, word_swapped, byte_swapped or little_endian. The
+     * other datapoints are big endian.
+     *
+     * @param slaveLib the modbus slave library
+     * @throws PropertiesLoadingException the address or order files could not be read
+     * @throws InvalidSlaveException a datapoint has an invalid slave address
+     */
+    private static void setRegisterOrders(ModbusSlaveLib slaveLib) throws PropertiesLoadingException,
+            InvalidSlaveException {
+        if (!new File(REGISTER_ORDERS_FILE).exists()) {
+            return;
+        }
+        final Map<String, Integer> slaveAddresses = PropertiesLoader.getJSONMap("conf/modbusSlaveAddresses.json");
+        final Map<String, Integer> registerAddresses = PropertiesLoader.getJSONMap("conf/modbusRegisterAddresses.json");
+        for (Map.Entry<String, String> order : PropertiesLoader.getJSONStringMap(REGISTER_ORDERS_FILE).entrySet()) {
+            final Integer slaveId = slaveAddresses.get(order.getKey());
+            final Integer register = registerAddresses.get(order.getKey());
+            if (slaveId == null || register == null) {
+                System.err.println("Datapoint " + order.getKey() + " has no address, ignoring its register order");
+            } else {
+                slaveLib.setRegisterOrder(slaveId, register, RegisterOrder.valueOf(order.getValue().toUpperCase()));
+            }
         }
     }
 }
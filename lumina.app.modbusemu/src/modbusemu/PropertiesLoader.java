@@ -68,4 +68,22 @@ public final class PropertiesLoader {
 
         return addressMap;
     }
+
+    /**
+     * Loads an HashMap of strings from a JSON file.
+     *
+     * @param fileName the name of the file with properties
+     * @return the set of properties
+     * @throws PropertiesLoadingException properties loading failed due to io or json
+     *             aspects
+     */
+    public static HashMap<String, String> getJSONStringMap(String fileName) throws PropertiesLoadingException {
+        try {
+            final TypeReference<HashMap<String, String>> typeRef = new TypeReference<HashMap<String, String>>() {
+            };
+            return new ObjectMapper().readValue(new File(fileName), typeRef);
+        } catch (IOException e) {
+            throw new PropertiesLoadingException();
+        }
+    }
 }
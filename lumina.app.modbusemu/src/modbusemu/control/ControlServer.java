@@ -0,0 +1,195 @@
+package modbusemu.control;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+import modbusemu.memorymap.DatapointRegistry;
+import modbusemu.memorymap.DelayedMemoryMap;
+import modbusemu.memorymap.ReplayClock;
+
+/**
+ * The Class ControlServer, a line based control channel listening on the loopback
+ * interface. Each line holds one command and is answered with one line starting with OK or
+ * ERROR. The commands are:
+ * <ul>
+ * <li>SEEK timestamp - moves the replay to a timestamp</li>
+ * <li>CHECKPOINT - writes a checkpoint now</li>
+ * <li>SPEED simulated_time real_time - changes the replay speed</li>
+ * <li>PAUSE - pauses the replay</li>
+ * <li>RESUME - resumes the replay at its speed</li>
+ * <li>UNTHROTTLED - replays as fast as the pipeline allows</li>
+ * <li>STATUS - reports the timestamp being replayed, the clock mode and speed, and the
+ * number of values written with the write rate since the previous STATUS, the writes
+ * suppressed by conflation, the writes skipped because the value did not change, the
+ * readings skipped because their datapoint is not mapped, whether the database is
+ * connected and how many times it was reconnected, the frames and their jitter
+ * with the frame replay engine, and the lag, delivered, dropped and conflated events of
+ * each write dispatcher</li>
+ * <li>UNCHANGED dpid - reports the writes of a datapoint skipped because the value did not
+ * change</li>
+ * </ul>
+ */
+public class ControlServer
+        extends Thread {
+
+    /** The charset of the control channel. */
+    private static final Charset CHARSET = Charset.forName("US-ASCII");
+
+    /** The delayed memory. */
+    private final DelayedMemoryMap memMap;
+    /** The listening port. */
+    private final int port;
+    /** The number of values written at the previous status. */
+    private long lastWriteCount;
+    /** The instant of the previous status - nano seconds. */
+    private long lastStatusNanos = System.nanoTime();
+
+    /**
+     * Instantiates a new control server.
+     *
+     * @param memMap the delayed memory
+     * @param port the listening port
+     */
+    public ControlServer(DelayedMemoryMap memMap, int port) {
+        super("Control Server");
+        this.memMap = memMap;
+        this.port = port;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        try {
+            final ServerSocket server = new ServerSocket(port, 1, InetAddress.getLoopbackAddress());
+            try {
+                while (true) {
+                    serve(server.accept());
+                }
+            } finally {
+                server.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Control channel could not listen on port " + port);
+        }
+    }
+
+    /**
+     * Serves a client until it disconnects.
+     *
+     * @param client the client socket
+     */
+    private void serve(Socket client) {
+        try {
+            final BufferedReader in = new BufferedReader(new InputStreamReader(
+                    client.getInputStream(), CHARSET));
+            final PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+            String line = in.readLine();
+            while (line != null) {
+                out.print(execute(line.trim()));
+                out.print("\r\n");
+                out.flush();
+                line = in.readLine();
+            }
+        } catch (IOException e) {
+            System.err.println("Control channel client disconnected");
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                System.err.println("Control channel client could not be closed");
+            }
+        }
+    }
+
+    /**
+     * Executes a command.
+     *
+     * @param line the command line
+     * @return the response line
+     */
+    String execute(String line) {
+        final String[] words = line.split("\\s+");
+        final String command = words[0].toUpperCase();
+
+        if ("SEEK".equals(command) && words.length == 2) {
+            try {
+                final long timestamp = Long.parseLong(words[1]);
+                if (memMap.seek(timestamp)) {
+                    return "OK " + timestamp;
+                }
+                return "ERROR seek to " + timestamp + " is not possible, the replayed range is "
+                        + memMap.getMinTS() + " to " + memMap.getMaxTS();
+            } catch (NumberFormatException e) {
+                return "ERROR invalid timestamp " + words[1];
+            }
+        } else if ("CHECKPOINT".equals(command) && words.length == 1) {
+            final long timestamp = memMap.checkpoint();
+            return timestamp < 0 ? "ERROR checkpoint was not written" : "OK " + timestamp;
+        } else if ("SPEED".equals(command) && words.length == 3) {
+            try {
+                final double simulatedTime = Double.parseDouble(words[1]);
+                final double realTime = Double.parseDouble(words[2]);
+                if (simulatedTime <= 0 || realTime <= 0) {
+                    return "ERROR speed must be positive";
+                }
+                memMap.setSpeed(simulatedTime, realTime);
+                return "OK " + simulatedTime + "/" + realTime;
+            } catch (NumberFormatException e) {
+                return "ERROR invalid speed " + words[1] + " " + words[2];
+            }
+        } else if ("PAUSE".equals(command) && words.length == 1) {
+            memMap.pause();
+            return "OK " + memMap.getReplayedTS();
+        } else if ("RESUME".equals(command) && words.length == 1) {
+            memMap.resume();
+            return "OK " + memMap.getReplayedTS();
+        } else if ("UNTHROTTLED".equals(command) && words.length == 1) {
+            memMap.unthrottle();
+            return "OK " + memMap.getReplayedTS();
+        } else if ("STATUS".equals(command) && words.length == 1) {
+            return "OK " + status();
+        } else if ("UNCHANGED".equals(command) && words.length == 2) {
+            final int id = memMap.getRegistry().getId(words[1]);
+            if (id == DatapointRegistry.UNKNOWN) {
+                return "ERROR unknown datapoint " + words[1];
+            }
+            return "OK " + memMap.getSkippedWriteCount(id);
+        }
+        return "ERROR unknown command " + line;
+    }
+
+    /**
+     * Reports the replay status.
+     *
+     * @return the status, as space separated key=value pairs
+     */
+    private String status() {
+        final long now = System.nanoTime();
+        final long writeCount = memMap.getWriteCount();
+        final double seconds = (now - lastStatusNanos) / 1e9;
+        final long writeRate = seconds > 0 ? (long) ((writeCount - lastWriteCount) / seconds) : 0;
+        lastWriteCount = writeCount;
+        lastStatusNanos = now;
+
+        final ReplayClock clock = memMap.getClock();
+        final StringBuilder status = new StringBuilder();
+        status.append("timestamp=").append(memMap.getReplayedTS());
+        status.append(" mode=").append(clock.getMode());
+        status.append(" time_rate=").append(clock.getTimeRate());
+        status.append(" writes=").append(writeCount);
+        status.append(" writes_per_second=").append(writeRate);
+        status.append(" suppressed_writes=").append(memMap.getSuppressedWriteCount());
+        status.append(" unchanged_writes=").append(memMap.getSkippedWriteCount());
+        status.append(" unmapped_readings=").append(memMap.getUnmappedReadings());
+        memMap.appendLoaderStatus(status);
+        memMap.appendFrameStatus(status);
+        memMap.appendDispatchStatus(status);
+        return status.toString();
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * This package contains the local control channel of the emulator.
+ */
+
+package modbusemu.control;
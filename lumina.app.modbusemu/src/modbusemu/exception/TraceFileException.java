@@ -0,0 +1,21 @@
+package modbusemu.exception;
+
+/**
+ * The Class TraceFileException.
+ */
+public class TraceFileException extends
+        Exception {
+
+    private static final long serialVersionUID = 1L;
+    private final String cause;
+
+    public TraceFileException(String cause) {
+        this.cause = cause;
+    }
+
+    @Override
+    public String getMessage() {
+        return "Trace file operation failed when trying to: " + cause;
+    }
+
+}
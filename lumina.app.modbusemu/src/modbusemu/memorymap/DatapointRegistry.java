@@ -0,0 +1,160 @@
+package modbusemu.memorymap;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Class DatapointRegistry, which compiles the datapoint address mappings into dense
+ * integer ids. Every datapoint that has both a modbus slave address and a register
+ * address gets an id between zero and {@link #size()}, so that the replay can keep its
+ * per datapoint state in primitive arrays instead of String keyed maps.
+ */
+public class DatapointRegistry {
+
+    /** The id returned for datapoints which are not mapped. */
+    public static final int UNKNOWN = -1;
+
+    /** The id of each datapoint. */
+    private final Map<String, Integer> ids;
+    /** The UTF-8 bytes of the datapoint id string of each id. */
+    private final byte[][] dpidBytes;
+    /** Open addressing hash table of ids keyed by datapoint id bytes, -1 marks empty slots. */
+    private final int[] byteTable;
+    /** The datapoint id string of each id. */
+    private final String[] dpids;
+    /** The modbus slave address of each id. */
+    private final int[] slaveIds;
+    /** The modbus register address of each id. */
+    private final int[] registers;
+
+    /**
+     * Compiles the registry. Datapoints are numbered by slave address and then by register
+     * address, so that the datapoints of the same slave have consecutive ids.
+     *
+     * @param addressMap the modbus slave address of each datapoint
+     * @param registerMap the modbus register address of each datapoint
+     */
+    public DatapointRegistry(final Map<String, Integer> addressMap,
+                             final Map<String, Integer> registerMap) {
+        final List<String> mapped = new ArrayList<String>();
+        for (String dpid : addressMap.keySet()) {
+            if (registerMap.containsKey(dpid)) {
+                mapped.add(dpid);
+            } else {
+                System.err.println("Datapoint " + dpid + " has no register address, ignoring it");
+            }
+        }
+
+        Collections.sort(mapped, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                final int bySlave = addressMap.get(a).compareTo(addressMap.get(b));
+                if (bySlave != 0) {
+                    return bySlave;
+                }
+                final int byRegister = registerMap.get(a).compareTo(registerMap.get(b));
+                return byRegister != 0 ? byRegister : a.compareTo(b);
+            }
+        });
+
+        final int size = mapped.size();
+        ids = new HashMap<String, Integer>(size * 2);
+        dpids = new String[size];
+        slaveIds = new int[size];
+        registers = new int[size];
+        dpidBytes = new byte[size][];
+        byteTable = new int[Integer.highestOneBit(Math.max(size, 1)) << 2];
+        Arrays.fill(byteTable, UNKNOWN);
+        final Charset utf8 = Charset.forName("UTF-8");
+        for (int id = 0; id < size; id++) {
+            final String dpid = mapped.get(id);
+            ids.put(dpid, id);
+            dpids[id] = dpid;
+            slaveIds[id] = addressMap.get(dpid);
+            registers[id] = registerMap.get(dpid);
+            dpidBytes[id] = dpid.getBytes(utf8);
+
+            int slot = hash(dpidBytes[id], 0, dpidBytes[id].length);
+            while (byteTable[slot] != UNKNOWN) {
+                slot = (slot + 1) & (byteTable.length - 1);
+            }
+            byteTable[slot] = id;
+        }
+    }
+
+    /**
+     * Resolves a datapoint into its id.
+     *
+     * @param dpid the datapoint id string
+     * @return the datapoint id, or {@link #UNKNOWN} if the datapoint is not mapped
+     */
+    public int getId(String dpid) {
+        final Integer id = ids.get(dpid);
+        return id == null ? UNKNOWN : id;
+    }
+
+    /**
+     * Resolves a datapoint, given as UTF-8 bytes, into its id without allocating a String.
+     *
+     * @param bytes the buffer holding the datapoint id
+     * @param offset the offset of the datapoint id in the buffer
+     * @param length the length of the datapoint id - bytes
+     * @return the datapoint id, or {@link #UNKNOWN} if the datapoint is not mapped
+     */
+    public int getId(byte[] bytes, int offset, int length) {
+        int slot = hash(bytes, offset, length);
+        while (byteTable[slot] != UNKNOWN) {
+            final byte[] candidate = dpidBytes[byteTable[slot]];
+            if (candidate.length == length && matches(candidate, bytes, offset)) {
+                return byteTable[slot];
+            }
+            slot = (slot + 1) & (byteTable.length - 1);
+        }
+        return UNKNOWN;
+    }
+
+    private int hash(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        hash ^= hash >>> 16;
+        return hash & (byteTable.length - 1);
+    }
+
+    private static boolean matches(byte[] candidate, byte[] bytes, int offset) {
+        for (int i = 0; i < candidate.length; i++) {
+            if (candidate[i] != bytes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of mapped datapoints.
+     *
+     * @return the number of datapoints
+     */
+    public int size() {
+        return dpids.length;
+    }
+
+    public String getDpid(int id) {
+        return dpids[id];
+    }
+
+    public int getSlaveId(int id) {
+        return slaveIds[id];
+    }
+
+    public int getRegister(int id) {
+        return registers[id];
+    }
+}
@@ -1,45 +1,100 @@
 package modbusemu.memorymap;
 
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Properties;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.DelayQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 import modbusemu.PropertiesLoader;
 import modbusemu.exception.PropertiesLoadingException;
+import modbusemu.exception.TraceFileException;
 import modbusemu.memorymap.databaseconnector.DBConnector;
+import modbusemu.memorymap.dataoperator.CSVLoader;
+import modbusemu.memorymap.dataoperator.Checkpointer;
 import modbusemu.memorymap.dataoperator.DataLoader;
 import modbusemu.memorymap.dataoperator.DataWriter;
+import modbusemu.memorymap.dataoperator.FrameWriter;
 import modbusemu.memorymap.dataoperator.IDataOperator;
+import modbusemu.memorymap.dataoperator.ReadingLoader;
+import modbusemu.memorymap.dataoperator.TraceLoader;
+import modbusemu.memorymap.trace.TraceReader;
 
 /**
  * The Class DelayedMemoryMap.
  */
 public class DelayedMemoryMap {
 
+    /** The default number of readings which may be loaded but not yet written. */
+    private static final int DEFAULT_MAX_PENDING = 1 << 20;
+
+    /** The pending seek timestamp when no seek is pending. */
+    private static final long NO_SEEK = Long.MIN_VALUE;
+
     /**
-     * An Hash map with one entry per datapoint id, which has a list of readings.
+     * The time ordered buffers with the pending readings of each writer shard, created when
+     * the memory map is opened.
      */
-    private final ConcurrentHashMap<String, DelayQueue<SensorReading>> readings;
+    private ReplayBuffer[] readings;
+
+    /** The writer shard of each datapoint id. */
+    private int[] shardOf;
 
     /** The modbus writing listeners. */
     private final List<IWriteListener> listeners;
-
-    /** The memory map which stores written values. */
-    private final Map<String, Long> memoryMap;
-
+    /** The modbus writing listeners, as an array for the write path. */
+    private volatile IWriteListener[] listenerArray = new IWriteListener[0];
     /**
-     * The address map, which has the modbus slave address of each datapoint.
+     * The write dispatcher of each writer shard, null when the listeners are called by the
+     * writers.
      */
-    private Map<String, Integer> addressMap;
+    private WriteDispatcher[] dispatchers;
+
+    /** The datapoint registry, compiled when the memory map is opened. */
+    private DatapointRegistry registry;
+
     /**
-     * The address map which has the modbus register address of each datapoint.
+     * The memory map which stores the written value of each datapoint id. Written by the
+     * writer of the datapoint with release stores and read back by the conflating write
+     * dispatchers, so they never see a stale or torn value.
      */
-    private Map<String, Integer> registerMap;
+    private AtomicLongArray memoryMap;
+
+    /** Whether writes of the value a datapoint already holds are skipped. */
+    private boolean changeOnly;
+
+    /** The number of skipped writes of each datapoint id, updated by its writer. */
+    private long[] skippedWrites;
+
+    /** The datapoint ids which already had their first reading scheduled. */
+    private boolean[] startedDatapoints;
+
+    /** The replay clock, created when the memory map is opened. */
+    private ReplayClock clock;
+
+    /** The timestamp of the requested seek which was not performed yet. */
+    private final AtomicLong pendingSeek = new AtomicLong(NO_SEEK);
+
+    /** lowest timestamp considered - seconds. */
+    private long minTS;
+    /** highest timestamp considered - seconds. */
+    private long maxTS;
+
+    /** The operator loading readings, created when the memory map is opened. */
+    private ReadingLoader dataLoader;
+    /** The checkpointer, null when checkpoints are disabled. */
+    private Checkpointer checkpointer;
+    /** The thread running the data loader. */
+    private Thread loadOperator;
+    /** The data writer of each shard, empty with the frame replay engine. */
+    private DataWriter[] dataWriters;
+    /** The frame writer of each shard, empty with the event replay engine. */
+    private FrameWriter[] frameWriters;
+    /** The thread running the data writer of each shard. */
+    private Thread[] writeOperators;
     /**
      * Initial modbus written value.
      */
@@ -57,7 +112,9 @@ public class DelayedMemoryMap {
     public interface IWriteListener {
 
         /**
-         * On write.
+         * On write. With several writer shards, it is called concurrently for datapoints of
+         * different slaves, but never concurrently for the same slave. With asynchronous
+         * dispatch, it is called from a dispatcher thread of the listener instead.
          * 
          * @param slaveId the slave id
          * @param nRegister the number of registers
@@ -73,8 +130,9 @@ public class DelayedMemoryMap {
      * 
      * @param l the listener
      */
-    public void addListener(IWriteListener l) {
+    public synchronized void addListener(IWriteListener l) {
         listeners.add(l);
+        listenerArray = listeners.toArray(new IWriteListener[listeners.size()]);
     }
 
 
@@ -82,45 +140,406 @@ public class DelayedMemoryMap {
      * Instantiates a new delayed memory map.
      */
     public DelayedMemoryMap() {
-        readings = new ConcurrentHashMap<String, DelayQueue<SensorReading>>();
-        listeners = new LinkedList<IWriteListener>();
-        memoryMap = new HashMap<String, Long>();
+        listeners = new ArrayList<IWriteListener>();
     }
 
     /**
-     * Writes a value on modbus slave.
+     * Gets the datapoint registry.
+     *
+     * @return the registry, or null if the memory map was not opened yet
+     */
+    public DatapointRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Gets the replay clock.
+     *
+     * @return the clock, or null if the memory map was not opened yet
+     */
+    public ReplayClock getClock() {
+        return clock;
+    }
+
+    public long getMinTS() {
+        return minTS;
+    }
+
+    public long getMaxTS() {
+        return maxTS;
+    }
+
+    public long getInitValue() {
+        return initValue;
+    }
+
+    /**
+     * Gets the timestamp being replayed, or the target of a pending seek.
+     *
+     * @return the timestamp - seconds
+     */
+    public long getReplayedTS() {
+        final long seek = pendingSeek.get();
+        if (seek != NO_SEEK) {
+            return seek;
+        }
+        return Math.max(minTS, Math.min(maxTS, clock.currentTS()));
+    }
+
+    /**
+     * Requests the replay to move to a timestamp. The readings not written yet are
+     * discarded, the loader writes the value of every datapoint at that timestamp and the
+     * replay continues from there.
+     *
+     * @param timestamp the timestamp - seconds
+     * @return true if the seek was requested, false if the timestamp is out of the
+     *         replayed range or the data source does not support seeking
+     */
+    public boolean seek(long timestamp) {
+        if (dataLoader == null || !dataLoader.isSeekable() || timestamp < minTS
+                || timestamp > maxTS) {
+            return false;
+        }
+
+        pendingSeek.set(timestamp);
+        for (ReplayBuffer buffer : readings) {
+            buffer.discard();
+        }
+        LockSupport.unpark(loadOperator);
+        wakeWriter();
+        return true;
+    }
+
+    /**
+     * Whether a seek was requested and not performed yet.
+     *
+     * @return true if there is a pending seek
+     */
+    public boolean isSeekPending() {
+        return pendingSeek.get() != NO_SEEK;
+    }
+
+    /**
+     * Takes the pending seek, to be performed by the loader.
+     *
+     * @return the seek timestamp - seconds
+     */
+    public long takeSeek() {
+        return pendingSeek.getAndSet(NO_SEEK);
+    }
+
+    /**
+     * Writes a checkpoint.
+     *
+     * @return the timestamp written - seconds, or -1 if checkpoints are disabled or the
+     *         checkpoint file could not be written
+     */
+    public long checkpoint() {
+        return checkpointer == null ? -1 : checkpointer.checkpoint();
+    }
+
+    /**
+     * Discards the readings which were not written yet.
+     */
+    public void discardPending() {
+        for (ReplayBuffer buffer : readings) {
+            buffer.discard();
+        }
+        wakeWriter();
+    }
+
+    /**
+     * Wakes the writers, so that they reschedule the next reading after the replay clock
+     * changed.
+     */
+    public void wakeWriter() {
+        for (Thread writeOperator : writeOperators) {
+            LockSupport.unpark(writeOperator);
+        }
+    }
+
+    /**
+     * Changes the replay speed without restamping the loaded readings. A paused or
+     * unthrottled replay starts running.
+     *
+     * @param simulatedTime the amount of simulated time - seconds
+     * @param realTime the amount of real time to simulate - seconds
+     */
+    public void setSpeed(double simulatedTime, double realTime) {
+        clock.setTimeRate(simulatedTime / realTime);
+        onClockChanged();
+    }
+
+    /**
+     * Pauses the replay.
+     */
+    public void pause() {
+        clock.pause();
+        onClockChanged();
+    }
+
+    /**
+     * Resumes the replay at its current speed.
+     */
+    public void resume() {
+        clock.resume();
+        onClockChanged();
+    }
+
+    /**
+     * Replays the readings as fast as the writer takes them, to measure the maximum
+     * sustained ingest rate.
+     */
+    public void unthrottle() {
+        clock.unthrottle();
+        onClockChanged();
+    }
+
+    /**
+     * Gets the number of values written since the memory map was opened.
+     *
+     * @return the number of values written
+     */
+    public long getWriteCount() {
+        long writeCount = 0;
+        for (DataWriter dataWriter : dataWriters) {
+            writeCount += dataWriter.getWriteCount();
+        }
+        for (FrameWriter frameWriter : frameWriters) {
+            writeCount += frameWriter.getWriteCount();
+        }
+        return writeCount;
+    }
+
+    /**
+     * Gets the number of due readings the writers did not write because a later reading of
+     * the same datapoint was due in the same conflation quantum.
+     *
+     * @return the number of suppressed writes
+     */
+    public long getSuppressedWriteCount() {
+        long suppressedCount = 0;
+        for (DataWriter dataWriter : dataWriters) {
+            suppressedCount += dataWriter.getSuppressedCount();
+        }
+        for (FrameWriter frameWriter : frameWriters) {
+            suppressedCount += frameWriter.getSuppressedCount();
+        }
+        return suppressedCount;
+    }
+
+    /**
+     * Appends the frame metrics of the frame writers to a status report, if the replay
+     * engine is frame based.
+     *
+     * @param status the status report
+     */
+    public void appendFrameStatus(StringBuilder status) {
+        if (frameWriters.length == 0) {
+            return;
+        }
+
+        long frameCount = 0;
+        long totalJitter = 0;
+        long maxJitter = 0;
+        long timedFrames = 0;
+        long totalFrameTime = 0;
+        for (FrameWriter frameWriter : frameWriters) {
+            frameCount += frameWriter.getFrameCount();
+            totalJitter += frameWriter.getTotalJitter();
+            maxJitter = Math.max(maxJitter, frameWriter.getMaxJitter());
+            timedFrames += frameWriter.getTimedFrames();
+            totalFrameTime += frameWriter.getTotalFrameTime();
+        }
+        status.append(" frames=").append(frameCount);
+        status.append(" frame_length_us=").append(frameWriters[0].getFrameLength() / 1000);
+        status.append(" frame_length_avg_us=").append(timedFrames > 0 ? totalFrameTime / timedFrames / 1000 : 0);
+        status.append(" frame_jitter_avg_us=").append(frameCount > 0 ? totalJitter / frameCount / 1000 : 0);
+        status.append(" frame_jitter_max_us=").append(maxJitter / 1000);
+    }
+
+    /**
+     * Appends the metrics of the write dispatchers to a status report, if the listeners are
+     * dispatched asynchronously.
+     *
+     * @param status the status report
+     */
+    public void appendDispatchStatus(StringBuilder status) {
+        if (dispatchers != null) {
+            for (WriteDispatcher dispatcher : dispatchers) {
+                dispatcher.appendStatus(status);
+            }
+        }
+    }
+
+    /**
+     * Appends the metrics of the loader, such as the health of its connection, to a status
+     * report.
+     *
+     * @param status the status report
+     */
+    public void appendLoaderStatus(StringBuilder status) {
+        dataLoader.appendStatus(status);
+    }
+
+    /**
+     * Wakes the loader and the writer after the replay clock changed.
+     */
+    private void onClockChanged() {
+        LockSupport.unpark(loadOperator);
+        wakeWriter();
+    }
+
+    /**
+     * Gets the last value written to a datapoint.
+     *
+     * @param id the datapoint id
+     * @return the value
+     */
+    public long getValue(int id) {
+        return memoryMap.get(id);
+    }
+
+    /**
+     * Gets the number of readings of the data source skipped because their datapoint is
+     * not mapped.
+     *
+     * @return the number of unmapped readings
+     */
+    public long getUnmappedReadings() {
+        return dataLoader.getUnmappedReadings();
+    }
+
+    /**
+     * Gets the number of writes skipped because the value did not change.
+     *
+     * @return the number of skipped writes
+     */
+    public long getSkippedWriteCount() {
+        long skippedCount = 0;
+        for (long skipped : skippedWrites) {
+            skippedCount += skipped;
+        }
+        return skippedCount;
+    }
+
+    /**
+     * Gets the number of writes of a datapoint skipped because the value did not change.
+     *
+     * @param id the datapoint id
+     * @return the number of skipped writes
+     */
+    public long getSkippedWriteCount(int id) {
+        return skippedWrites[id];
+    }
+
+    /**
+     * Writes a value on modbus slave. The listeners are called by the caller, or by their
+     * dispatcher threads when the listeners are dispatched asynchronously. With change only
+     * writes, a value equal to the last value written is skipped, as the slave already holds
+     * it.
      * 
-     * @param address the address
+     * @param id the datapoint id
      * @param value the value
      */
-    public void write(String address, long value) {
-        memoryMap.put(address, value);
+    public void write(int id, long value) {
+        if (changeOnly && memoryMap.get(id) == value) {
+            skippedWrites[id]++;
+            return;
+        }
+        memoryMap.lazySet(id, value);
+
+        final int slaveId = registry.getSlaveId(id);
+        final int register = registry.getRegister(id);
+        if (dispatchers != null) {
+            dispatchers[shardOf[id]].publish(id, slaveId, register, value);
+            return;
+        }
+        for (IWriteListener l : listenerArray) {
+            l.onWrite(slaveId, register, value, this);
+        }
+    }
+
+    /**
+     * Writes a batch of values on one modbus slave. Listeners implementing
+     * {@link IBatchWriteListener} receive the whole batch at once, the others one value at a
+     * time. The arrays are reused by the caller, and the unchanged values skipped with
+     * change only writes are removed from them.
+     *
+     * @param ids the datapoint ids, all of the same slave
+     * @param registers filled with the register of each value written
+     * @param values the values
+     * @param count the number of values
+     */
+    public void writeBatch(int[] ids, int[] registers, long[] values, int count) {
+        int written = 0;
+        for (int i = 0; i < count; i++) {
+            final int id = ids[i];
+            final long value = values[i];
+            if (changeOnly && memoryMap.get(id) == value) {
+                skippedWrites[id]++;
+                continue;
+            }
+            memoryMap.lazySet(id, value);
+            ids[written] = id;
+            registers[written] = registry.getRegister(id);
+            values[written++] = value;
+        }
+        if (written == 0) {
+            return;
+        }
 
-        for (IWriteListener l : listeners) {
-            l.onWrite(addressMap.get(address), registerMap.get(address), value, this);
+        final int slaveId = registry.getSlaveId(ids[0]);
+        if (dispatchers != null) {
+            for (int i = 0; i < written; i++) {
+                dispatchers[shardOf[ids[i]]].publish(ids[i], slaveId, registers[i], values[i]);
+            }
+            return;
+        }
+        for (IWriteListener l : listenerArray) {
+            if (l instanceof IBatchWriteListener) {
+                ((IBatchWriteListener) l).onBatchWrite(slaveId, registers, values, written, this);
+            } else {
+                for (int i = 0; i < written; i++) {
+                    l.onWrite(slaveId, registers[i], values[i], this);
+                }
+            }
         }
     }
 
     /**
      * Writes delayed sensor readings, for later processing.
-     * 
-     * @param dpid the datapoint id
-     * @param timestamp the timestamp
+     * The first reading of each datapoint is due immediately, the remaining ones are due
+     * when the replay clock reaches their timestamp. Readings must be written in timestamp
+     * order. Blocks while the maximum number of pending readings is reached.
+     *
+     * @param id the datapoint id
+     * @param timestamp the simulated timestamp - seconds
      * @param reading the reading
+     * @throws InterruptedException interrupted while waiting for the writer to drain
      */
-    public void writeDelayed(String dpid, long timestamp, long reading) {
-        final DelayQueue<SensorReading> queue = readings.get(dpid);
-
-        if (queue != null) {
-            queue.add(new SensorReading(System.nanoTime() + timestamp, reading));
+    public void writeDelayed(int id, long timestamp, long reading) throws InterruptedException {
+        if (!startedDatapoints[id]) {
+            startedDatapoints[id] = true;
+            readings[shardOf[id]].put(ReplayBuffer.IMMEDIATE, id, reading);
         } else {
-            DelayQueue<SensorReading> delayedQueue = new DelayQueue<SensorReading>();
-            write(dpid, reading);
-            //delayedQueue.add(new SensorReading(System.nanoTime() + timestamp, reading));
-            readings.put(dpid, delayedQueue);
+            readings[shardOf[id]].put(timestamp, id, reading);
         }
     }
 
+    /**
+     * Writes a reading which is due immediately, such as the state of a datapoint after a
+     * seek.
+     *
+     * @param id the datapoint id
+     * @param reading the reading
+     * @throws InterruptedException interrupted while waiting for the writer to drain
+     */
+    public void writeImmediate(int id, long reading) throws InterruptedException {
+        startedDatapoints[id] = true;
+        readings[shardOf[id]].put(ReplayBuffer.IMMEDIATE, id, reading);
+    }
+
     /**
      * The Class DataOperatorThread.
      */
@@ -140,39 +559,202 @@ public class DelayedMemoryMap {
     }
 
     /**
-     * Initiates the delayed memory, running threads and loading properties.
+     * Initiates the delayed memory, running threads and loading properties. Readings are
+     * loaded from the trace file when the trace mode is compile or replay, from the CSV file
+     * when the data source is csv, and from the database otherwise. When resuming from a
+     * checkpoint, the replay starts with a seek to the checkpoint timestamp.
      *
      * @param dbConnector the database connector
      * @param props emulator configuration properties
      * @throws PropertiesLoadingException properties loading failed
+     * @throws TraceFileException the trace file could not be read
      */
-    public void open(DBConnector dbConnector, Properties props) throws PropertiesLoadingException {
-        addressMap = PropertiesLoader.getJSONMap("conf/modbusSlaveAddresses.json");
-        registerMap = PropertiesLoader.getJSONMap("conf/modbusRegisterAddresses.json");
+    public void open(DBConnector dbConnector, Properties props) throws PropertiesLoadingException,
+            TraceFileException {
+        registry = new DatapointRegistry(
+                PropertiesLoader.getJSONMap("conf/modbusSlaveAddresses.json"),
+                PropertiesLoader.getJSONMap("conf/modbusRegisterAddresses.json"));
+        memoryMap = new AtomicLongArray(registry.size());
+        startedDatapoints = new boolean[registry.size()];
+
+        skippedWrites = new long[registry.size()];
 
-        for (Entry<String, Integer> address : addressMap.entrySet()) {
-            write(address.getKey(), initValue);
+        for (int id = 0; id < registry.size(); id++) {
+            write(id, initValue);
         }
+        changeOnly = Boolean.parseBoolean(props.getProperty("change_only_writes"));
 
-        dbConnector.setProperties(props);
-        final long minTS = Long.parseLong(props.getProperty("min_ts"));
-        final long maxTS = Long.parseLong(props.getProperty("max_ts"));
+        minTS = Long.parseLong(props.getProperty("min_ts"));
+        maxTS = Long.parseLong(props.getProperty("max_ts"));
         final float simulatedTime = Float.parseFloat(props.getProperty("simulated_time"));
         final float realTime = Float.parseFloat(props.getProperty("real_time"));
         final int loadRate = Integer.parseInt(props.getProperty("load_rate"));
         final float timeRate = simulatedTime / realTime;
+        final long loadAhead = Long.parseLong(props.getProperty("load_ahead", "0"));
+        final int maxPending = Integer.parseInt(props.getProperty("max_pending_readings", "0"));
+
+        final int shards = Math.max(1, Integer.parseInt(props.getProperty("writer_shards", "1")));
+        clock = new ReplayClock(minTS, timeRate);
+        if (Boolean.parseBoolean(props.getProperty("unthrottled"))) {
+            clock.unthrottle();
+        }
+        final long conflationQuantum = Boolean.parseBoolean(props.getProperty("conflate_writes"))
+                ? Long.parseLong(props.getProperty("conflation_quantum", "0")) * 1000000
+                : DataWriter.NO_CONFLATION;
+        final long frameLength = "frame".equals(props.getProperty("replay_engine"))
+                ? Long.parseLong(props.getProperty("frame_length", "10")) * 1000000
+                : 0;
+        createShards(shards, maxPending > 0 ? maxPending : DEFAULT_MAX_PENDING, conflationQuantum,
+                frameLength);
+        if (Boolean.parseBoolean(props.getProperty("async_dispatch"))) {
+            final WriteDispatcher.OverflowPolicy policy = WriteDispatcher.OverflowPolicy.valueOf(
+                    props.getProperty("dispatch_overflow", "block").toUpperCase());
+            // the memory map holds the value written before it is published, so a dropped
+            // event would make change only writes skip the value the slave never received
+            if (changeOnly && policy == WriteDispatcher.OverflowPolicy.DROP_OLDEST) {
+                throw new IllegalArgumentException(
+                        "change_only_writes cannot be used with dispatch_overflow=drop_oldest");
+            }
+            createDispatchers(shards,
+                    Integer.parseInt(props.getProperty("dispatch_ring_size", "65536")), policy);
+        }
+        final String traceMode = props.getProperty("trace_mode", "off");
+        if ("compile".equals(traceMode) || "replay".equals(traceMode)) {
+            final String traceFile = props.getProperty("trace_file");
+            try {
+                dataLoader = new TraceLoader(this, new TraceReader(new File(traceFile)), loadRate,
+                        loadAhead, minTS, maxTS);
+            } catch (IOException e) {
+                throw new TraceFileException("read " + traceFile + ": " + e.getMessage());
+            }
+        } else if ("csv".equals(props.getProperty("data_source"))) {
+            dataLoader = new CSVLoader(this, new File(props.getProperty("csv_file")), loadRate,
+                    loadAhead, minTS, maxTS);
+        } else {
+            dbConnector.setProperties(props);
+            dataLoader = new DataLoader(this, dbConnector, loadRate, loadAhead, minTS, maxTS,
+                    Boolean.parseBoolean(props.getProperty("count_unmapped")),
+                    Long.parseLong(props.getProperty("reconnect_max_backoff", "30000")));
+        }
 
-        final DataWriter dataWriter = new DataWriter(this, readings.entrySet());
-        final DataLoader dataLoader = new DataLoader(this, dbConnector, loadRate, timeRate, minTS,
-                maxTS);
+        final String checkpointFile = props.getProperty("checkpoint_file", "");
+        final long checkpointInterval = Long.parseLong(props.getProperty("checkpoint_interval", "0"));
+        if (!checkpointFile.isEmpty()) {
+            checkpointer = new Checkpointer(this, new File(checkpointFile), checkpointInterval * 1000);
+            if (Boolean.parseBoolean(props.getProperty("resume_from_checkpoint"))) {
+                resumeFromCheckpoint(new File(checkpointFile));
+            }
+        }
+        clock.start();
 
-        final DataOperator writeOperator = new DataOperator(dataWriter);
-        final DataOperator loadOperator = new DataOperator(dataLoader);
-        writeOperator.setDaemon(true);
+        if (dispatchers != null) {
+            for (WriteDispatcher dispatcher : dispatchers) {
+                dispatcher.start();
+            }
+        }
+        loadOperator = new DataOperator(dataLoader);
         loadOperator.setDaemon(true);
         loadOperator.start();
-        writeOperator.start();
+        for (Thread writeOperator : writeOperators) {
+            writeOperator.start();
+        }
+        if (checkpointer != null && checkpointInterval > 0) {
+            final DataOperator checkpointOperator = new DataOperator(checkpointer);
+            checkpointOperator.setDaemon(true);
+            checkpointOperator.start();
+        }
         System.err.print("Loading datapoints...");
         System.err.println("Transfering datapoints...");
     }
+
+    /**
+     * Creates the writer shards. Slaves are assigned to shards round robin, in slave address
+     * order, and every datapoint goes to the shard of its slave. Each shard has its own
+     * buffer and writer thread, so shards never write the same slave.
+     *
+     * @param shards the number of shards
+     * @param capacity the capacity of the buffer of each shard
+     * @param conflationQuantum the conflation quantum of the data writers - nano
+     * @param frameLength the frame length of the frame writers - nano, 0 to use data
+     *            writers
+     */
+    private void createShards(int shards, int capacity, long conflationQuantum, long frameLength) {
+        shardOf = new int[registry.size()];
+        int slaves = 0;
+        for (int id = 0; id < registry.size(); id++) {
+            if (id > 0 && registry.getSlaveId(id) != registry.getSlaveId(id - 1)) {
+                slaves++;
+            }
+            shardOf[id] = slaves % shards;
+        }
+
+        readings = new ReplayBuffer[shards];
+        dataWriters = new DataWriter[frameLength > 0 ? 0 : shards];
+        frameWriters = new FrameWriter[frameLength > 0 ? shards : 0];
+        writeOperators = new Thread[shards];
+        for (int shard = 0; shard < shards; shard++) {
+            readings[shard] = new ReplayBuffer(capacity);
+            if (frameLength > 0) {
+                frameWriters[shard] = new FrameWriter(this, readings[shard], clock, shard,
+                        frameLength);
+                writeOperators[shard] = new DataOperator(frameWriters[shard]);
+            } else {
+                dataWriters[shard] = new DataWriter(this, readings[shard], clock, shard,
+                        conflationQuantum);
+                writeOperators[shard] = new DataOperator(dataWriters[shard]);
+            }
+            writeOperators[shard].setDaemon(true);
+        }
+    }
+
+    /**
+     * Creates a write dispatcher for each writer shard, with one consumer thread per
+     * listener. Listeners added later are not dispatched.
+     *
+     * @param shards the number of shards
+     * @param capacity the capacity of the ring of each shard
+     * @param policy the overflow policy
+     */
+    private void createDispatchers(int shards, int capacity, WriteDispatcher.OverflowPolicy policy) {
+        final int[] sizes = new int[shards];
+        for (int id = 0; id < registry.size(); id++) {
+            sizes[shardOf[id]]++;
+        }
+        final int[][] ids = new int[shards][];
+        for (int shard = 0; shard < shards; shard++) {
+            ids[shard] = new int[sizes[shard]];
+            sizes[shard] = 0;
+        }
+        for (int id = 0; id < registry.size(); id++) {
+            ids[shardOf[id]][sizes[shardOf[id]]++] = id;
+        }
+
+        dispatchers = new WriteDispatcher[shards];
+        for (int shard = 0; shard < shards; shard++) {
+            dispatchers[shard] = new WriteDispatcher(this, shard, ids[shard], listenerArray,
+                    capacity, policy);
+        }
+    }
+
+    /**
+     * Requests a seek to the timestamp of the checkpoint file, if it exists.
+     *
+     * @param checkpointFile the checkpoint file
+     */
+    private void resumeFromCheckpoint(File checkpointFile) {
+        if (!checkpointFile.exists()) {
+            return;
+        }
+
+        try {
+            final long timestamp = Checkpointer.readCheckpoint(checkpointFile);
+            if (seek(timestamp)) {
+                System.err.println("Resuming replay from checkpoint " + timestamp);
+            } else {
+                System.err.println("Checkpoint " + timestamp + " can not be resumed");
+            }
+        } catch (IOException e) {
+            System.err.println("Checkpoint file " + checkpointFile + " could not be read");
+        }
+    }
 }
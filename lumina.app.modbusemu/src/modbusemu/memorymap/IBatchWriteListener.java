@@ -0,0 +1,22 @@
+package modbusemu.memorymap;
+
+import modbusemu.memorymap.DelayedMemoryMap.IWriteListener;
+
+/**
+ * The listener interface for receiving the writes of a replay frame, one batch per slave.
+ * Listeners which do not implement it receive the batch one write at a time.
+ */
+public interface IBatchWriteListener
+        extends IWriteListener {
+
+    /**
+     * On batch write, the values written to a slave in one frame.
+     *
+     * @param slaveId the slave id
+     * @param registers the register of each value
+     * @param values the values
+     * @param count the number of values
+     * @param client the client
+     */
+    void onBatchWrite(int slaveId, int[] registers, long[] values, int count, DelayedMemoryMap client);
+}
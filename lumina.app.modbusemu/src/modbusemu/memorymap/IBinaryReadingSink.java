@@ -0,0 +1,25 @@
+package modbusemu.memorymap;
+
+/**
+ * The Interface IBinaryReadingSink, a reading sink which also takes the datapoint id as
+ * UTF-8 bytes, so that data sources decoding binary rows hand readings over without
+ * allocating a String per reading.
+ */
+public interface IBinaryReadingSink
+        extends IReadingSink {
+
+    /**
+     * On reading, with the datapoint id as UTF-8 bytes. The bytes are only valid during the
+     * call.
+     *
+     * @param dpid the buffer holding the datapoint id
+     * @param offset the offset of the datapoint id in the buffer
+     * @param length the length of the datapoint id - bytes
+     * @param timestamp the read timestamp - seconds
+     * @param reading the reading value
+     * @return false to stop reading, true otherwise
+     * @throws InterruptedException interrupted while handing the reading over
+     */
+    boolean onReading(byte[] dpid, int offset, int length, long timestamp, long reading)
+            throws InterruptedException;
+}
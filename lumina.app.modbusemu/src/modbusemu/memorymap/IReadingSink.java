@@ -0,0 +1,19 @@
+package modbusemu.memorymap;
+
+/**
+ * The Interface IReadingSink, which receives the readings produced by a data source in
+ * timestamp order.
+ */
+public interface IReadingSink {
+
+    /**
+     * On reading.
+     *
+     * @param dpid the datapoint id
+     * @param timestamp the read timestamp - seconds
+     * @param reading the reading value
+     * @return false to stop reading, true otherwise
+     * @throws InterruptedException interrupted while handing the reading over
+     */
+    boolean onReading(String dpid, long timestamp, long reading) throws InterruptedException;
+}
@@ -0,0 +1,190 @@
+package modbusemu.memorymap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The Class ReplayBuffer, a bounded single producer single consumer ring of readings
+ * stored as parallel primitive arrays of (timestamp, datapoint id, value). The loader fills
+ * it in timestamp order and the writer consumes it sequentially, so the buffer stays sorted
+ * without a heap and no object is allocated per reading.
+ */
+public class ReplayBuffer {
+
+    /** The timestamp of readings which are due as soon as they are consumed. */
+    public static final long IMMEDIATE = Long.MIN_VALUE;
+
+    /** The longest a blocked producer parks before checking again - nano. */
+    private static final long MAX_PARK = 1000000L;
+
+    /** The simulated timestamp of each reading. */
+    private final long[] timestamps;
+    /** The datapoint id of each reading. */
+    private final int[] ids;
+    /** The value of each reading. */
+    private final long[] values;
+    /** The mask which maps a sequence into a ring position. */
+    private final int mask;
+
+    /** The sequence of the next reading to consume. */
+    private final AtomicLong head = new AtomicLong();
+    /** The sequence of the next reading to produce. */
+    private final AtomicLong tail = new AtomicLong();
+    /** The sequence before which every reading is discarded. */
+    private final AtomicLong skipTo = new AtomicLong();
+
+    /** The thread parked waiting for readings, if any. */
+    private volatile Thread waitingConsumer;
+    /** The thread parked waiting for free space, if any. */
+    private volatile Thread waitingProducer;
+
+    /**
+     * Instantiates a new replay buffer.
+     *
+     * @param capacity the minimum number of readings the buffer holds, it is rounded up to
+     *            the next power of two
+     */
+    public ReplayBuffer(int capacity) {
+        final int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        timestamps = new long[size];
+        ids = new int[size];
+        values = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Appends a reading, blocking while the buffer is full.
+     *
+     * @param timestamp the simulated timestamp, or {@link #IMMEDIATE}
+     * @param id the datapoint id
+     * @param value the reading value
+     * @throws InterruptedException the producer thread was interrupted
+     */
+    public void put(long timestamp, int id, long value) throws InterruptedException {
+        final long sequence = tail.get();
+        while (sequence - head.get() > mask) {
+            waitingProducer = Thread.currentThread();
+            if (sequence - head.get() > mask) {
+                LockSupport.parkNanos(this, MAX_PARK);
+            }
+            waitingProducer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        final int position = (int) sequence & mask;
+        timestamps[position] = timestamp;
+        ids[position] = id;
+        values[position] = value;
+        // a full store, so that either the consumer sees the reading before it parks or
+        // this thread sees the parked consumer
+        tail.set(sequence + 1);
+
+        final Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Blocks the consumer until there is at least one reading to consume. An idle consumer
+     * parks without a timeout, it is woken by {@link #put} or {@link #discard}.
+     *
+     * @throws InterruptedException the consumer thread was interrupted
+     */
+    public void awaitReadings() throws InterruptedException {
+        skipDiscarded();
+        while (isEmpty()) {
+            waitingConsumer = Thread.currentThread();
+            if (isEmpty()) {
+                LockSupport.park(this);
+            }
+            waitingConsumer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            skipDiscarded();
+        }
+    }
+
+    /**
+     * Discards every reading produced so far. The consumer skips them the next time it
+     * waits for readings. May be called by any thread.
+     */
+    public void discard() {
+        final long sequence = tail.get();
+        long skip = skipTo.get();
+        while (skip < sequence && !skipTo.compareAndSet(skip, sequence)) {
+            skip = skipTo.get();
+        }
+
+        final Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Moves the head of the buffer past the discarded readings.
+     */
+    private void skipDiscarded() {
+        final long skip = skipTo.get();
+        if (skip > head.get()) {
+            head.lazySet(skip);
+
+            final Thread producer = waitingProducer;
+            if (producer != null) {
+                LockSupport.unpark(producer);
+            }
+        }
+    }
+
+    /**
+     * Checks, without blocking, whether there is a reading to consume, skipping the
+     * discarded readings first.
+     *
+     * @return true if there is at least one reading
+     */
+    public boolean hasReadings() {
+        skipDiscarded();
+        return !isEmpty();
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * Gets the number of readings waiting to be consumed.
+     *
+     * @return the number of readings
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public long peekTimestamp() {
+        return timestamps[(int) head.get() & mask];
+    }
+
+    public int peekId() {
+        return ids[(int) head.get() & mask];
+    }
+
+    public long peekValue() {
+        return values[(int) head.get() & mask];
+    }
+
+    /**
+     * Consumes the reading at the head of the buffer.
+     */
+    public void advance() {
+        head.lazySet(head.get() + 1);
+
+        final Thread producer = waitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package modbusemu.memorymap;
+
+/**
+ * The Class ReplayClock, which maps simulated timestamps into the real time instants at
+ * which they are replayed. The clock may be moved, paused, resumed, run at a different
+ * time rate or unthrottled while the replay runs, without changing the readings which are
+ * already loaded.
+ */
+public class ReplayClock {
+
+    /** The amount of nano seconds corresponding to one second. */
+    private static final double ONE_SECOND_IN_NANO = 1000000000d;
+
+    /**
+     * The Enum Mode.
+     */
+    public enum Mode {
+        /** Readings are replayed at the time rate. */
+        RUNNING,
+        /** No reading is replayed. */
+        PAUSED,
+        /** Readings are replayed as fast as the writer takes them. */
+        UNTHROTTLED
+    }
+
+    /** The simulated timestamp replayed at a given instant. */
+    private volatile Anchor anchor;
+    /** The last timestamp replayed while unthrottled - seconds. */
+    private volatile long replayedTS;
+
+    /**
+     * The Class Anchor, a simulated position, the instant at which it is replayed and how
+     * the replay runs from there.
+     */
+    private static final class Anchor {
+        /** The simulated position - seconds. */
+        private final double position;
+        /** The instant, in nano seconds, at which the position is replayed. */
+        private final long nanos;
+        /** The real time nano seconds spent per simulated nano second. */
+        private final double timeRate;
+        /** The clock mode. */
+        private final Mode mode;
+
+        private Anchor(double position, long nanos, double timeRate, Mode mode) {
+            this.position = position;
+            this.nanos = nanos;
+            this.timeRate = timeRate;
+            this.mode = mode;
+        }
+    }
+
+    /**
+     * Instantiates a new replay clock.
+     *
+     * @param startTS the simulated timestamp at which the replay starts - seconds
+     * @param timeRate the time rate between simulated time and real time being simulated
+     */
+    public ReplayClock(long startTS, float timeRate) {
+        this.anchor = new Anchor(startTS, System.nanoTime(), timeRate, Mode.RUNNING);
+        this.replayedTS = startTS;
+    }
+
+    /**
+     * Starts the clock, the start timestamp is replayed now.
+     */
+    public synchronized void start() {
+        final Anchor current = anchor;
+        anchor = new Anchor(current.position, System.nanoTime(), current.timeRate, current.mode);
+    }
+
+    /**
+     * Moves the clock, the given timestamp is replayed now.
+     *
+     * @param timestamp the simulated timestamp - seconds
+     */
+    public synchronized void seek(long timestamp) {
+        final Anchor current = anchor;
+        replayedTS = timestamp;
+        anchor = new Anchor(timestamp, System.nanoTime(), current.timeRate, current.mode);
+    }
+
+    /**
+     * Changes the time rate, continuing from the position being replayed. A paused or
+     * unthrottled clock starts running.
+     *
+     * @param timeRate the time rate between simulated time and real time being simulated
+     */
+    public synchronized void setTimeRate(double timeRate) {
+        anchor = new Anchor(position(), System.nanoTime(), timeRate, Mode.RUNNING);
+    }
+
+    /**
+     * Pauses the clock at the position being replayed.
+     */
+    public synchronized void pause() {
+        setMode(Mode.PAUSED);
+    }
+
+    /**
+     * Runs the clock at its time rate from the position being replayed.
+     */
+    public synchronized void resume() {
+        setMode(Mode.RUNNING);
+    }
+
+    /**
+     * Unthrottles the clock, every reading is due as soon as the writer takes it.
+     */
+    public synchronized void unthrottle() {
+        setMode(Mode.UNTHROTTLED);
+    }
+
+    private void setMode(Mode mode) {
+        final double position = position();
+        replayedTS = (long) position;
+        anchor = new Anchor(position, System.nanoTime(), anchor.timeRate, mode);
+    }
+
+    public Mode getMode() {
+        return anchor.mode;
+    }
+
+    public double getTimeRate() {
+        return anchor.timeRate;
+    }
+
+    /**
+     * Gets how long until a timestamp is due.
+     *
+     * @param timestamp the simulated timestamp - seconds
+     * @return the delay - nano seconds, zero or negative if the timestamp is due, or
+     *         {@link Long#MAX_VALUE} while the clock is paused
+     */
+    public long delayUntil(long timestamp) {
+        final Anchor current = anchor;
+        switch (current.mode) {
+            case PAUSED:
+                return Long.MAX_VALUE;
+            case UNTHROTTLED:
+                return 0;
+            default:
+                return current.nanos - System.nanoTime()
+                        + (long) ((timestamp - current.position) * ONE_SECOND_IN_NANO * current.timeRate);
+        }
+    }
+
+    /**
+     * Gets the latest timestamp which is due now, to check many readings at once.
+     *
+     * @return the simulated timestamp - seconds, {@link Long#MIN_VALUE} while the clock is
+     *         paused, or {@link Long#MAX_VALUE} while it is unthrottled
+     */
+    public long dueHorizon() {
+        final Anchor current = anchor;
+        switch (current.mode) {
+            case PAUSED:
+                return Long.MIN_VALUE;
+            case UNTHROTTLED:
+                return Long.MAX_VALUE;
+            default:
+                return (long) Math.floor(position());
+        }
+    }
+
+    /**
+     * Signals that the writer replayed a timestamp, which drives the position of an
+     * unthrottled clock.
+     *
+     * @param timestamp the simulated timestamp - seconds
+     */
+    public void markReplayed(long timestamp) {
+        if (anchor.mode == Mode.UNTHROTTLED) {
+            replayedTS = timestamp;
+        }
+    }
+
+    /**
+     * Gets the simulated timestamp being replayed now.
+     *
+     * @return the current simulated timestamp - seconds
+     */
+    public long currentTS() {
+        return (long) position();
+    }
+
+    private double position() {
+        final Anchor current = anchor;
+        switch (current.mode) {
+            case PAUSED:
+                return current.position;
+            case UNTHROTTLED:
+                return Math.max(current.position, replayedTS);
+            default:
+                return current.position
+                        + (System.nanoTime() - current.nanos) / (ONE_SECOND_IN_NANO * current.timeRate);
+        }
+    }
+}
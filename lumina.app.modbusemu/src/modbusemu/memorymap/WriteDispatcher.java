@@ -0,0 +1,248 @@
+package modbusemu.memorymap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import modbusemu.memorymap.DelayedMemoryMap.IWriteListener;
+
+/**
+ * The Class WriteDispatcher, a preallocated single producer, multi consumer ring of
+ * (slave id, register, value) write events between a writer shard and the write
+ * listeners. Each listener consumes the ring at its own pace on its own thread, so a slow
+ * listener never stalls the replay clock, unless the overflow policy says so.
+ */
+public class WriteDispatcher {
+
+    /**
+     * The Enum OverflowPolicy, what happens when a consumer is a whole ring behind the
+     * producer.
+     */
+    public enum OverflowPolicy {
+        /** The producer waits for the consumer. */
+        BLOCK,
+        /** The consumer loses the oldest events. */
+        DROP_OLDEST,
+        /**
+         * The consumer skips the events it missed and instead receives the latest value of
+         * every datapoint of the shard.
+         */
+        CONFLATE
+    }
+
+    /** The datapoint id, slave id and register of each event, packed into a long. */
+    private final AtomicLongArray keys;
+    /** The value of each event. */
+    private final AtomicLongArray values;
+    /** The mask which maps a sequence into a ring position. */
+    private final int mask;
+    /** The overflow policy. */
+    private final OverflowPolicy policy;
+    /** The delayed memory, holding the latest value of each datapoint. */
+    private final DelayedMemoryMap memMap;
+    /** The datapoint ids of the shard. */
+    private final int[] ids;
+    /** The consumers, one per listener. */
+    private final Consumer[] consumers;
+
+    /**
+     * The sequence past the last event the producer started to write, an event is
+     * overwritten once this sequence is more than a ring ahead of it.
+     */
+    private final AtomicLong claimed = new AtomicLong();
+    /** The sequence past the last event published. */
+    private final AtomicLong published = new AtomicLong();
+    /** The lowest consumer sequence seen by the producer, only used by the producer. */
+    private long gatingSequence;
+    /** The producer, while it is parked waiting for a consumer. */
+    private volatile Thread blockedProducer;
+    /**
+     * The number of events never published because the producer was interrupted while
+     * blocked, lost for every consumer. Only written by the producer.
+     */
+    private volatile long unpublished;
+
+    /**
+     * Instantiates a new write dispatcher.
+     *
+     * @param memMap the delayed memory
+     * @param shard the writer shard
+     * @param ids the datapoint ids of the shard
+     * @param listeners the listeners
+     * @param capacity the minimum number of events the ring holds, it is rounded up to the
+     *            next power of two
+     * @param policy the overflow policy
+     */
+    public WriteDispatcher(DelayedMemoryMap memMap,
+                           int shard,
+                           int[] ids,
+                           IWriteListener[] listeners,
+                           int capacity,
+                           OverflowPolicy policy) {
+        final int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.keys = new AtomicLongArray(size);
+        this.values = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.policy = policy;
+        this.memMap = memMap;
+        this.ids = ids;
+        this.consumers = new Consumer[listeners.length];
+        for (int i = 0; i < listeners.length; i++) {
+            consumers[i] = new Consumer(listeners[i], "Write Dispatcher " + shard + "." + i);
+        }
+    }
+
+    /**
+     * Starts the consumer threads.
+     */
+    public void start() {
+        for (Consumer consumer : consumers) {
+            consumer.start();
+        }
+    }
+
+    /**
+     * Publishes a write event. Only called by the writer of the shard. When the producer is
+     * interrupted while blocked, the event is counted as dropped by every consumer and the
+     * interrupt status is left set.
+     *
+     * @param id the datapoint id
+     * @param slaveId the slave id
+     * @param register the register
+     * @param value the value
+     */
+    public void publish(int id, int slaveId, int register, long value) {
+        final long sequence = published.get();
+        if (policy == OverflowPolicy.BLOCK) {
+            while (sequence - gatingSequence > mask) {
+                gatingSequence = lowestConsumerSequence(sequence);
+                if (sequence - gatingSequence > mask) {
+                    blockedProducer = Thread.currentThread();
+                    if (sequence - lowestConsumerSequence(sequence) > mask) {
+                        LockSupport.park(this);
+                    }
+                    blockedProducer = null;
+                    if (Thread.currentThread().isInterrupted()) {
+                        unpublished++;
+                        return;
+                    }
+                }
+            }
+        }
+
+        final int position = (int) sequence & mask;
+        claimed.set(sequence + 1);
+        keys.lazySet(position, ((long) id << 32) | ((long) (slaveId & 0xFFFF) << 16) | (register & 0xFFFF));
+        values.lazySet(position, value);
+        // a full store, so that either a consumer sees the event before it parks or this
+        // thread sees the waiting consumer
+        published.set(sequence + 1);
+
+        for (Consumer consumer : consumers) {
+            if (consumer.waiting) {
+                LockSupport.unpark(consumer);
+            }
+        }
+    }
+
+    private long lowestConsumerSequence(long lowest) {
+        for (Consumer consumer : consumers) {
+            lowest = Math.min(lowest, consumer.sequence.get());
+        }
+        return lowest;
+    }
+
+    /**
+     * Appends the metrics of each consumer to a status report.
+     *
+     * @param status the status report
+     */
+    public void appendStatus(StringBuilder status) {
+        for (Consumer consumer : consumers) {
+            final String prefix = " " + consumer.getName().replace(' ', '_').toLowerCase();
+            status.append(prefix).append(".lag=").append(published.get() - consumer.sequence.get());
+            status.append(prefix).append(".delivered=").append(consumer.delivered);
+            status.append(prefix).append(".dropped=").append(consumer.dropped + unpublished);
+            status.append(prefix).append(".conflated=").append(consumer.conflated);
+        }
+    }
+
+    /**
+     * The Class Consumer, which delivers the events of the ring to one listener.
+     */
+    private final class Consumer
+            extends Thread {
+        /** The listener. */
+        private final IWriteListener listener;
+        /** The sequence of the next event to deliver. */
+        private final AtomicLong sequence = new AtomicLong();
+        /** Set while the consumer is parked waiting for events. */
+        private volatile boolean waiting;
+        /** The number of events delivered. */
+        private volatile long delivered;
+        /** The number of events lost. */
+        private volatile long dropped;
+        /** The number of events replaced by the latest values. */
+        private volatile long conflated;
+
+        private Consumer(IWriteListener listener, String name) {
+            super(name);
+            this.listener = listener;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long next = sequence.get();
+            while (!isInterrupted()) {
+                if (next >= published.get()) {
+                    waiting = true;
+                    if (next >= published.get()) {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                    continue;
+                }
+
+                final int position = (int) next & mask;
+                final long key = keys.get(position);
+                final long value = values.get(position);
+                if (claimed.get() - next > mask + 1) {
+                    next = overflow(next);
+                } else {
+                    listener.onWrite((int) (key >>> 16) & 0xFFFF, (int) key & 0xFFFF, value, memMap);
+                    delivered++;
+                    next++;
+                }
+                sequence.set(next);
+                final Thread producer = blockedProducer;
+                if (producer != null) {
+                    LockSupport.unpark(producer);
+                }
+            }
+        }
+
+        /**
+         * Recovers from an event which was overwritten before it was delivered.
+         *
+         * @param next the sequence of the overwritten event
+         * @return the sequence to continue from
+         */
+        private long overflow(long next) {
+            if (policy == OverflowPolicy.CONFLATE) {
+                final long resume = claimed.get();
+                for (int id : ids) {
+                    final int slaveId = memMap.getRegistry().getSlaveId(id);
+                    final int register = memMap.getRegistry().getRegister(id);
+                    listener.onWrite(slaveId, register, memMap.getValue(id), memMap);
+                }
+                conflated += resume - next;
+                return resume;
+            }
+
+            final long resume = claimed.get() - mask;
+            dropped += resume - next;
+            return resume;
+        }
+    }
+}
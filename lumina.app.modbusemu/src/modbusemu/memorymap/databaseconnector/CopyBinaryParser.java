@@ -0,0 +1,170 @@
+package modbusemu.memorymap.databaseconnector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import modbusemu.memorymap.IBinaryReadingSink;
+
+/**
+ * The Class CopyBinaryParser, a stream which parses the output of a PostgreSQL binary COPY
+ * of (dpid text, rts bigint, reading bigint) rows as it arrives. Each row is handed over
+ * to the sink straight from the parse buffer, no objects are allocated per row.
+ */
+final class CopyBinaryParser
+        extends OutputStream {
+
+    /** The signature which starts the binary COPY format. */
+    private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0 };
+    /** The length of the header before its extension area - bytes. */
+    private static final int HEADER_LENGTH = SIGNATURE.length + 8;
+    /** The number of columns of each row. */
+    private static final short COLUMNS = 3;
+    /** The length of a row without the dpid - bytes. */
+    private static final int ROW_LENGTH = 2 + 4 + 4 + 8 + 4 + 8;
+
+    /**
+     * The Class CopyStoppedException, thrown to abort the COPY once the sink stopped it or
+     * was interrupted.
+     */
+    private static final class CopyStoppedException
+            extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private final IBinaryReadingSink sink;
+    /** The bytes received and not parsed yet, a row is parsed once it is complete. */
+    private byte[] buffer = new byte[1 << 16];
+    private int size;
+    private boolean headerRead;
+    /** Set once the trailer was read. */
+    private boolean finished;
+    /** Set when the sink stopped the COPY. */
+    private boolean stopped;
+    /** The interruption of the sink, null if it was not interrupted. */
+    private InterruptedException interruption;
+
+    CopyBinaryParser(IBinaryReadingSink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (size + length > buffer.length) {
+            final byte[] grown = new byte[Math.max(buffer.length * 2, size + length)];
+            System.arraycopy(buffer, 0, grown, 0, size);
+            buffer = grown;
+        }
+        System.arraycopy(bytes, offset, buffer, size, length);
+        size += length;
+
+        final int parsed = parse();
+        System.arraycopy(buffer, parsed, buffer, 0, size - parsed);
+        size -= parsed;
+    }
+
+    /**
+     * Parses the complete rows in the buffer.
+     *
+     * @return the number of bytes parsed
+     * @throws IOException the data is not a COPY of readings, or the sink stopped it
+     */
+    private int parse() throws IOException {
+        int position = 0;
+        if (!headerRead) {
+            if (size < HEADER_LENGTH) {
+                return 0;
+            }
+            for (int i = 0; i < SIGNATURE.length; i++) {
+                if (buffer[i] != SIGNATURE[i]) {
+                    throw new IOException("Not a binary COPY");
+                }
+            }
+            final int extension = getInt(SIGNATURE.length + 4);
+            if (size < HEADER_LENGTH + extension) {
+                return 0;
+            }
+            position = HEADER_LENGTH + extension;
+            headerRead = true;
+        }
+
+        while (!finished && size - position >= 2) {
+            final short columns = getShort(position);
+            if (columns == -1) {
+                finished = true;
+                return position + 2;
+            } else if (columns != COLUMNS) {
+                throw new IOException("Unexpected number of columns " + columns);
+            } else if (size - position < 6) {
+                break;
+            }
+
+            final int dpidLength = getInt(position + 2);
+            if (dpidLength < 0) {
+                throw new IOException("Unexpected null dpid");
+            } else if (size - position < ROW_LENGTH + dpidLength) {
+                break;
+            }
+            final int rts = position + 6 + dpidLength;
+            if (getInt(rts) != 8 || getInt(rts + 12) != 8) {
+                throw new IOException("Unexpected rts or reading type");
+            }
+
+            try {
+                if (!sink.onReading(buffer, position + 6, dpidLength, getLong(rts + 4), getLong(rts + 16))) {
+                    stopped = true;
+                    throw new CopyStoppedException();
+                }
+            } catch (InterruptedException e) {
+                interruption = e;
+                throw new CopyStoppedException();
+            }
+            position += ROW_LENGTH + dpidLength;
+        }
+        return position;
+    }
+
+    private short getShort(int position) {
+        return (short) ((buffer[position] & 0xFF) << 8 | buffer[position + 1] & 0xFF);
+    }
+
+    private int getInt(int position) {
+        return (buffer[position] & 0xFF) << 24 | (buffer[position + 1] & 0xFF) << 16
+                | (buffer[position + 2] & 0xFF) << 8 | buffer[position + 3] & 0xFF;
+    }
+
+    private long getLong(int position) {
+        return (long) getInt(position) << 32 | getInt(position + 4) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Whether the trailer of the COPY was read.
+     *
+     * @return true if every row was parsed
+     */
+    boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Whether the sink stopped the COPY.
+     *
+     * @return true if the sink stopped it
+     */
+    boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Gets the interruption of the sink.
+     *
+     * @return the interruption, or null if the sink was not interrupted
+     */
+    InterruptedException getInterruption() {
+        return interruption;
+    }
+}
@@ -1,23 +1,93 @@
 package modbusemu.memorymap.databaseconnector;
 
+import java.nio.charset.Charset;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import modbusemu.exception.DatabaseConnectionException;
+import modbusemu.memorymap.IBinaryReadingSink;
+import modbusemu.memorymap.IReadingSink;
 
 /**
  * The Interface for a generic database connector.
  */
 public abstract class DBConnector {
 
+    /** The table of the readings. */
+    protected static final String READINGS_TABLE = "read_data_record";
+    /** The query which reads a time window of readings, before the datapoint filter. */
+    private static final String WINDOW_QUERY = "SELECT dpid,rts,reading FROM " + READINGS_TABLE
+            + " WHERE rts >= ? AND rts < ?";
+    /**
+     * The query which reads the last reading of each datapoint within a time range, the
+     * groupwise maximum is resolved through the (dpid, rts) primary key. The datapoint
+     * filter goes between the two parts.
+     */
+    private static final String[] STATE_QUERY = {
+        "SELECT r.dpid,r.rts,r.reading FROM read_data_record r "
+                + "JOIN (SELECT dpid, MAX(rts) AS rts FROM read_data_record WHERE rts >= ? AND rts <= ?",
+        " GROUP BY dpid) l ON r.dpid = l.dpid AND r.rts = l.rts" };
+    /** The query which counts the readings of each datapoint within a time window. */
+    private static final String COUNT_QUERY = "SELECT dpid,COUNT(*) FROM read_data_record WHERE rts >= ? AND rts < ? GROUP BY dpid";
+    /** The encoding of datapoint ids given as bytes. */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** The largest number of datapoints put in the IN list of the datapoint filter. */
+    private static final int FILTER_BATCH_SIZE = 1000;
+    /** The temporary table holding the datapoints of a filter too large for an IN list. */
+    private static final String FILTER_TABLE = "emu_datapoint";
+    /** The datapoint filter reading the datapoints from the temporary table. */
+    private static final String FILTER_TABLE_CONDITION = "dpid IN (SELECT dpid FROM " + FILTER_TABLE + ")";
+
     private Properties properties;
-    private Connection conn;
+    /** The connections of the pool, the first one runs every query but window slices. */
+    private Session[] sessions = new Session[0];
+    /** The threads loading window slices on the pooled connections, null without a pool. */
+    private ExecutorService slicers;
+    /** The number of rows fetched at a time, 0 leaves it to the driver. */
+    private int fetchSize;
+    /** The number of connections, windows are loaded in as many parallel slices. */
+    private int poolSize = 1;
+    /** The datapoints the queries are restricted to, null reads every datapoint. */
+    private String[] datapoints;
+    /**
+     * The width of the rts range partitions of the readings table - seconds, 0 if windows
+     * are not aligned to partitions.
+     */
+    private long partitionWidth;
+
+    /**
+     * The Class Session, a connection with the statements prepared on it.
+     */
+    private static final class Session {
+        private final Connection conn;
+        /** The statements prepared on the connection, reused by every query. */
+        private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+        /** The datapoints in the temporary filter table of the connection, null if none. */
+        private String[] filterTableDpids;
+
+        private Session(Connection conn) {
+            this.conn = conn;
+        }
+    }
 
     /**
-     * Gets JDBC connection.
+     * Gets JDBC connection, one per pooled connection.
      *
      * @throws DatabaseConnectionException the database connection exception
      * @return operation predicate stating the operation result
@@ -26,7 +96,39 @@ public abstract class DBConnector {
         try {
             final long initTime = System.currentTimeMillis();
             runDriver();
-            conn = DriverManager.getConnection(getURL(properties), properties);
+            final Session[] pool = new Session[poolSize];
+            try {
+                for (int i = 0; i < poolSize; i++) {
+                    pool[i] = new Session(DriverManager.getConnection(getURL(properties), properties));
+                    if (fetchSize > 0) {
+                        // drivers such as PostgreSQL only stream rows inside a transaction
+                        pool[i].conn.setAutoCommit(false);
+                    }
+                }
+            } catch (SQLException e) {
+                // do not leak the connections opened before the failure
+                for (Session session : pool) {
+                    if (session != null) {
+                        try {
+                            session.conn.close();
+                        } catch (SQLException closeError) {
+                            // already failing
+                        }
+                    }
+                }
+                throw e;
+            }
+            sessions = pool;
+            if (poolSize > 1 && slicers == null) {
+                slicers = Executors.newFixedThreadPool(poolSize - 1, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "Window Slicer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
             System.err.println(getName()
                     + " Database connection was established sucessfully taking "
                     + (System.currentTimeMillis() - initTime) + " miliseconds");
@@ -44,28 +146,510 @@ public abstract class DBConnector {
 
     public void closeConnection() throws DatabaseConnectionException {
         try {
-            if (conn != null) {
-                conn.close();
-            } else {
+            if (sessions.length == 0) {
                 throw new DatabaseConnectionException("close connection");
             }
+            for (Session session : sessions) {
+                for (PreparedStatement statement : session.statements.values()) {
+                    statement.close();
+                }
+                session.conn.close();
+            }
+            sessions = new Session[0];
+            if (slicers != null) {
+                slicers.shutdown();
+                slicers = null;
+            }
         } catch (SQLException e) {
             throw new DatabaseConnectionException("close connection");
         }
     }
 
     public PreparedStatement getPreparedStatement(String query) throws DatabaseConnectionException {
+        return getPreparedStatement(sessions[0], query);
+    }
+
+    private PreparedStatement getPreparedStatement(Session session, String query)
+            throws DatabaseConnectionException {
         PreparedStatement statement = null;
         try {
-            statement = conn.prepareStatement(query);
+            statement = session.conn.prepareStatement(query);
         } catch (SQLException e) {
             throw new DatabaseConnectionException("process query statement");
         }
         return statement;
     };
 
+    /**
+     * Reads the readings of a time window, handing them over in timestamp order. With a
+     * pool of connections, the window is split into consecutive slices loaded in parallel;
+     * the first slice is handed over while it is read and the others are buffered and handed
+     * over after it, in order.
+     *
+     * @param fromTS the lowest timestamp of the window, inclusive - seconds
+     * @param toTS the highest timestamp of the window, exclusive - seconds
+     * @param sink the sink receiving the readings
+     * @return true if the whole window was read, false if the sink stopped it
+     * @throws DatabaseConnectionException the database connection exception
+     * @throws InterruptedException interrupted while handing a reading over
+     */
+    public boolean loadWindow(long fromTS, long toTS, IReadingSink sink) throws DatabaseConnectionException,
+            InterruptedException {
+        final long sliceWidth = (toTS - fromTS + poolSize - 1) / poolSize;
+        if (poolSize == 1 || sliceWidth < 2) {
+            return loadRange(sessions[0], fromTS, toTS, sink);
+        }
+
+        final List<Slice> slices = new ArrayList<Slice>();
+        final List<Future<Boolean>> loads = new ArrayList<Future<Boolean>>();
+        for (int i = 1; i < poolSize && fromTS + i * sliceWidth < toTS; i++) {
+            final Slice slice = new Slice(sessions[i], fromTS + i * sliceWidth,
+                    Math.min(fromTS + (i + 1) * sliceWidth, toTS));
+            slices.add(slice);
+            loads.add(slicers.submit(slice));
+        }
+
+        boolean completed = false;
+        try {
+            completed = loadRange(sessions[0], fromTS, fromTS + sliceWidth, sink);
+            for (int i = 0; completed && i < slices.size(); i++) {
+                loads.get(i).get();
+                completed = slices.get(i).handOver(sink);
+            }
+            return completed;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DatabaseConnectionException) {
+                throw (DatabaseConnectionException) e.getCause();
+            }
+            throw new DatabaseConnectionException("process query statement");
+        } finally {
+            if (!completed) {
+                for (Slice slice : slices) {
+                    slice.cancelled = true;
+                }
+                for (Future<Boolean> load : loads) {
+                    try {
+                        load.get();
+                    } catch (ExecutionException e) {
+                        // the window was already stopped
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the readings of a time window on one connection, in timestamp order, with a
+     * single query whatever the number of datapoints.
+     *
+     * @param session the connection
+     * @param fromTS the lowest timestamp of the window, inclusive - seconds
+     * @param toTS the highest timestamp of the window, exclusive - seconds
+     * @param sink the sink receiving the readings
+     * @return true if the whole window was read, false if the sink stopped it
+     * @throws DatabaseConnectionException the database connection exception
+     * @throws InterruptedException interrupted while handing a reading over
+     */
+    private boolean loadRange(Session session, long fromTS, long toTS, IReadingSink sink)
+            throws DatabaseConnectionException, InterruptedException {
+        if (datapoints != null && datapoints.length == 0) {
+            // no datapoint is mapped, an empty filter would not even be valid SQL
+            return true;
+        }
+        final Boolean bulkCompleted = bulkLoad(session.conn, fromTS, toTS, datapoints, sink);
+        if (bulkCompleted != null) {
+            return bulkCompleted;
+        }
+
+        return load(session, getWindowQuery(getFilter()), fromTS, toTS, sink);
+    }
+
+    private String getWindowQuery(String filter) {
+        return filter == null ? WINDOW_QUERY + " ORDER BY rts" : WINDOW_QUERY + " AND " + filter + " ORDER BY rts";
+    }
+
+    /**
+     * Shortens a time window so that it does not cross a partition boundary of the readings
+     * table. Windows are still read from the readings table, but with aligned bounds the
+     * database prunes every partition but one.
+     *
+     * @param fromTS the lowest timestamp of the window, inclusive - seconds
+     * @param toTS the highest timestamp of the window, exclusive - seconds
+     * @return the highest timestamp of the aligned window, exclusive - seconds
+     */
+    public long alignWindow(long fromTS, long toTS) {
+        if (partitionWidth <= 0) {
+            return toTS;
+        }
+        return Math.min(toTS, getPartitionStart(fromTS) + partitionWidth);
+    }
+
+    private long getPartitionStart(long timestamp) {
+        return timestamp - ((timestamp % partitionWidth) + partitionWidth) % partitionWidth;
+    }
+
+    /**
+     * Gets the datapoint filter of the queries. More datapoints than fit in one filter are
+     * read from a temporary table, so that every query is a single streamed result set.
+     *
+     * @return the condition, or null if the queries are not filtered
+     */
+    private String getFilter() {
+        if (datapoints == null) {
+            return null;
+        }
+        return usesFilterTable() ? FILTER_TABLE_CONDITION : getDatapointFilter(datapoints.length);
+    }
+
+    private boolean usesFilterTable() {
+        return datapoints != null && datapoints.length > getFilterBatchSize();
+    }
+
+    /**
+     * Fills the temporary filter table of a connection with the datapoints, unless it
+     * already holds them. Temporary tables live as long as the connection, so the table is
+     * filled again after a reconnect.
+     *
+     * @param session the connection
+     * @throws SQLException the SQL exception
+     */
+    private void fillFilterTable(Session session) throws SQLException {
+        if (session.filterTableDpids == datapoints) {
+            return;
+        }
+        final Statement st = session.conn.createStatement();
+        try {
+            st.execute("DROP TABLE IF EXISTS " + FILTER_TABLE);
+            st.execute("CREATE TEMPORARY TABLE " + FILTER_TABLE + " (dpid VARCHAR(255) PRIMARY KEY)");
+        } finally {
+            st.close();
+        }
+        final PreparedStatement insert = session.conn.prepareStatement("INSERT INTO " + FILTER_TABLE
+                + " (dpid) VALUES (?)");
+        try {
+            for (int i = 0; i < datapoints.length; i++) {
+                insert.setString(1, datapoints[i]);
+                insert.addBatch();
+                if ((i + 1) % FILTER_BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+        } finally {
+            insert.close();
+        }
+        if (!session.conn.getAutoCommit()) {
+            session.conn.commit();
+        }
+        session.filterTableDpids = datapoints;
+    }
+
+    /**
+     * Reads a time window through a bulk extraction path of the database, if it has one for
+     * the sink.
+     *
+     * @param conn the connection
+     * @param fromTS the lowest timestamp of the window, inclusive - seconds
+     * @param toTS the highest timestamp of the window, exclusive - seconds
+     * @param dpids the datapoints the window is restricted to, or null for every datapoint
+     * @param sink the sink receiving the readings
+     * @return null if there is no bulk path, otherwise true if the whole window was read,
+     *         false if the sink stopped it
+     * @throws DatabaseConnectionException the database connection exception
+     * @throws InterruptedException interrupted while handing a reading over
+     */
+    protected Boolean bulkLoad(Connection conn, long fromTS, long toTS, String[] dpids, IReadingSink sink)
+            throws DatabaseConnectionException, InterruptedException {
+        return null;
+    }
+
+    /**
+     * The Class ReadingBuffer, readings buffered in columns until they can be handed over.
+     * Datapoint ids given as bytes are kept as bytes, and only decoded if the receiving sink
+     * does not take bytes.
+     */
+    private static class ReadingBuffer
+            implements IBinaryReadingSink {
+        /** Set when the window is stopped, the buffer stops reading. */
+        protected volatile boolean cancelled;
+        private int count;
+        /** The datapoint id of each reading, null if it was given as bytes. */
+        private String[] dpids = new String[1024];
+        private long[] timestamps = new long[1024];
+        private long[] readings = new long[1024];
+        /** The datapoint ids given as bytes, one after the other. */
+        private byte[] dpidBytes = new byte[1 << 14];
+        private int dpidBytesSize;
+        /** The offset of each datapoint id given as bytes. */
+        private int[] dpidOffsets = new int[1024];
+        /** The length of each datapoint id given as bytes. */
+        private int[] dpidLengths = new int[1024];
+
+        @Override
+        public boolean onReading(String dpid, long timestamp, long reading) {
+            add(timestamp, reading);
+            dpids[count++] = dpid;
+            return !cancelled;
+        }
+
+        @Override
+        public boolean onReading(byte[] dpid, int offset, int length, long timestamp, long reading) {
+            add(timestamp, reading);
+            if (dpidBytesSize + length > dpidBytes.length) {
+                dpidBytes = Arrays.copyOf(dpidBytes, Math.max(dpidBytes.length * 2, dpidBytesSize + length));
+            }
+            System.arraycopy(dpid, offset, dpidBytes, dpidBytesSize, length);
+            dpidOffsets[count] = dpidBytesSize;
+            dpidLengths[count] = length;
+            dpidBytesSize += length;
+            dpids[count++] = null;
+            return !cancelled;
+        }
+
+        private void add(long timestamp, long reading) {
+            if (count == dpids.length) {
+                dpids = Arrays.copyOf(dpids, count * 2);
+                timestamps = Arrays.copyOf(timestamps, count * 2);
+                readings = Arrays.copyOf(readings, count * 2);
+                dpidOffsets = Arrays.copyOf(dpidOffsets, count * 2);
+                dpidLengths = Arrays.copyOf(dpidLengths, count * 2);
+            }
+            timestamps[count] = timestamp;
+            readings[count] = reading;
+        }
+
+        protected boolean handOver(IReadingSink sink) throws InterruptedException {
+            for (int i = 0; i < count; i++) {
+                if (!handOver(i, sink)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean handOver(int i, IReadingSink sink) throws InterruptedException {
+            if (dpids[i] != null) {
+                return sink.onReading(dpids[i], timestamps[i], readings[i]);
+            } else if (sink instanceof IBinaryReadingSink) {
+                return ((IBinaryReadingSink) sink).onReading(dpidBytes, dpidOffsets[i], dpidLengths[i],
+                        timestamps[i], readings[i]);
+            }
+            return sink.onReading(new String(dpidBytes, dpidOffsets[i], dpidLengths[i], UTF_8),
+                    timestamps[i], readings[i]);
+        }
+    }
+
+    /**
+     * The Class Slice, a slice of a window loaded on a pooled connection and buffered until
+     * the earlier slices were handed over.
+     */
+    private final class Slice
+            extends ReadingBuffer
+            implements Callable<Boolean> {
+        private final Session session;
+        private final long fromTS;
+        private final long toTS;
+
+        private Slice(Session session, long fromTS, long toTS) {
+            this.session = session;
+            this.fromTS = fromTS;
+            this.toTS = toTS;
+        }
+
+        @Override
+        public Boolean call() throws DatabaseConnectionException, InterruptedException {
+            return loadRange(session, fromTS, toTS, this);
+        }
+    }
+
+    /**
+     * Reads the last reading of each datapoint within a time range, in no particular order.
+     *
+     * @param fromTS the lowest timestamp of the range, inclusive - seconds
+     * @param toTS the highest timestamp of the range, inclusive - seconds
+     * @param sink the sink receiving the readings
+     * @throws DatabaseConnectionException the database connection exception
+     * @throws InterruptedException interrupted while handing a reading over
+     */
+    public void loadState(long fromTS, long toTS, IReadingSink sink) throws DatabaseConnectionException,
+            InterruptedException {
+        if (datapoints != null && datapoints.length == 0) {
+            return;
+        }
+        load(sessions[0], getStateQuery(getFilter()), fromTS, toTS, sink);
+    }
+
+    /**
+     * Counts the readings of each datapoint within a time window, whether it is filtered or
+     * not. Only one row per datapoint is read.
+     *
+     * @param fromTS the lowest timestamp of the window, inclusive - seconds
+     * @param toTS the highest timestamp of the window, exclusive - seconds
+     * @return the number of readings of each datapoint
+     * @throws DatabaseConnectionException the database connection exception
+     */
+    public Map<String, Long> countReadings(long fromTS, long toTS) throws DatabaseConnectionException {
+        final Map<String, Long> counts = new HashMap<String, Long>();
+        try {
+            final PreparedStatement st = getStatement(sessions[0], COUNT_QUERY);
+            st.setLong(1, fromTS);
+            st.setLong(2, toTS);
+            final ResultSet rs = st.executeQuery();
+            try {
+                while (rs.next()) {
+                    counts.put(rs.getString(1), rs.getLong(2));
+                }
+            } finally {
+                rs.close();
+                if (!sessions[0].conn.getAutoCommit()) {
+                    sessions[0].conn.commit();
+                }
+            }
+        } catch (SQLException e) {
+            throw new DatabaseConnectionException("process query statement");
+        }
+        return counts;
+    }
+
+    /**
+     * Restricts the queries to a set of datapoints, so that the readings of other
+     * datapoints are not sent over the connection.
+     *
+     * @param dpids the datapoints, or null to read every datapoint
+     */
+    public void setDatapoints(String[] dpids) {
+        this.datapoints = dpids == null ? null : dpids.clone();
+    }
+
+    /**
+     * Gets the query which reads the last reading of each datapoint within a time range.
+     *
+     * @param filter the datapoint filter, or null if the query is not filtered
+     * @return the query, with the lowest and highest timestamps as parameters followed by
+     *         the parameters of the filter
+     */
+    protected String getStateQuery(String filter) {
+        return STATE_QUERY[0] + (filter == null ? "" : " AND " + filter) + STATE_QUERY[1];
+    }
+
+    /**
+     * Gets how many datapoints go into one datapoint filter, more datapoints than that are
+     * read from a temporary table instead.
+     *
+     * @return the number of datapoints
+     */
+    protected int getFilterBatchSize() {
+        return FILTER_BATCH_SIZE;
+    }
+
+    /**
+     * Gets the condition which restricts a query to a number of datapoints.
+     *
+     * @param count the number of datapoints
+     * @return the condition on the dpid column
+     */
+    protected String getDatapointFilter(int count) {
+        final StringBuilder filter = new StringBuilder("dpid IN (?");
+        for (int i = 1; i < count; i++) {
+            filter.append(",?");
+        }
+        return filter.append(')').toString();
+    }
+
+    /**
+     * Binds the datapoints of a datapoint filter.
+     *
+     * @param st the statement
+     * @param index the index of the first parameter of the filter
+     * @param dpids the datapoints
+     * @param first the first datapoint of the filter
+     * @param last the datapoint after the filter
+     * @throws SQLException the SQL exception
+     */
+    protected void setDatapointFilter(PreparedStatement st, int index, String[] dpids, int first, int last)
+            throws SQLException {
+        for (int i = first; i < last; i++) {
+            st.setString(index++, dpids[i]);
+        }
+    }
+
+    /**
+     * Gets the statement of a query, prepared once per connection and then reused, with the
+     * configured fetch size.
+     *
+     * @param session the connection
+     * @param query the query
+     * @return the statement
+     * @throws DatabaseConnectionException the database connection exception
+     */
+    private PreparedStatement getStatement(Session session, String query) throws DatabaseConnectionException {
+        PreparedStatement statement = session.statements.get(query);
+        if (statement == null) {
+            try {
+                statement = prepareStreaming(session.conn, query, fetchSize);
+            } catch (SQLException e) {
+                throw new DatabaseConnectionException("process query statement");
+            }
+            session.statements.put(query, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Prepares a statement whose rows are read once, front to back. Connectors override it
+     * when their driver needs more than a fetch size to stream rows.
+     *
+     * @param conn the connection
+     * @param query the query
+     * @param fetchSize the configured fetch size, 0 leaves it to the driver
+     * @return the statement
+     * @throws SQLException the SQL exception
+     */
+    protected PreparedStatement prepareStreaming(Connection conn, String query, int fetchSize)
+            throws SQLException {
+        final PreparedStatement statement = conn.prepareStatement(query);
+        statement.setFetchSize(fetchSize);
+        return statement;
+    }
+
+    private boolean load(Session session,
+                         String query,
+                         long fromTS,
+                         long toTS,
+                         IReadingSink sink) throws DatabaseConnectionException, InterruptedException {
+        try {
+            if (usesFilterTable()) {
+                fillFilterTable(session);
+            }
+            final PreparedStatement st = getStatement(session, query);
+            st.setLong(1, fromTS);
+            st.setLong(2, toTS);
+            if (datapoints != null && !usesFilterTable()) {
+                setDatapointFilter(st, 3, datapoints, 0, datapoints.length);
+            }
+            final ResultSet rs = st.executeQuery();
+            boolean completed = true;
+            try {
+                while (completed && rs.next()) {
+                    completed = sink.onReading(rs.getString(1), rs.getLong(2), rs.getLong(3));
+                }
+            } finally {
+                rs.close();
+                if (!session.conn.getAutoCommit()) {
+                    session.conn.commit();
+                }
+            }
+            return completed;
+        } catch (SQLException e) {
+            throw new DatabaseConnectionException("process query statement");
+        }
+    }
+
     public void setProperties(Properties properties) {
         this.properties = properties;
+        this.fetchSize = Integer.parseInt(properties.getProperty("fetch_size", "0"));
+        this.poolSize = Math.max(1, Integer.parseInt(properties.getProperty("pool_size", "1")));
+        this.partitionWidth = Long.parseLong(properties.getProperty("partition_width", "0"));
     }
 
     /**
@@ -1,11 +1,24 @@
 package modbusemu.memorymap.databaseconnector;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+
 /**
- * The Class MYSQLConnector.
+ * The Class MYSQLConnector. Connector/J reads the whole result set into memory unless a
+ * statement is streamed, so every query is streamed: row by row by default, or through a
+ * server side cursor fetching fetch_size rows at a time when mysql_cursor_fetch is set.
+ * Either way, at most one result set is open per connection, which is how the connector
+ * reads them.
  */
 public class MYSQLConnector extends
         DBConnector {
 
+    /** Whether rows are read through server side cursors. */
+    private boolean cursorFetch;
+
     @Override
     protected String getName() {
         return "MYSQL";
@@ -16,4 +29,30 @@ public class MYSQLConnector extends
         Class.forName("com.mysql.jdbc.Driver");
     }
 
+    /**
+     * The partition_width property is ignored, windows are aligned to partitions on
+     * PostgreSQL only.
+     */
+    @Override
+    public void setProperties(Properties properties) {
+        cursorFetch = Boolean.parseBoolean(properties.getProperty("mysql_cursor_fetch"))
+                && Integer.parseInt(properties.getProperty("fetch_size", "0")) > 0;
+        final Properties connectionProperties = new Properties();
+        connectionProperties.putAll(properties);
+        connectionProperties.remove("partition_width");
+        if (cursorFetch) {
+            connectionProperties.setProperty("useCursorFetch", "true");
+        }
+        super.setProperties(connectionProperties);
+    }
+
+    @Override
+    protected PreparedStatement prepareStreaming(Connection conn, String query, int fetchSize)
+            throws SQLException {
+        final PreparedStatement statement = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY,
+                ResultSet.CONCUR_READ_ONLY);
+        // Integer.MIN_VALUE is the Connector/J signal to stream rows one at a time
+        statement.setFetchSize(cursorFetch ? fetchSize : Integer.MIN_VALUE);
+        return statement;
+    }
 }
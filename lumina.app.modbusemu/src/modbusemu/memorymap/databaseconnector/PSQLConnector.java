@@ -1,11 +1,38 @@
 package modbusemu.memorymap.databaseconnector;
 
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Properties;
+
+import modbusemu.exception.DatabaseConnectionException;
+import modbusemu.memorymap.IBinaryReadingSink;
+import modbusemu.memorymap.IReadingSink;
+
+import org.postgresql.PGConnection;
+
 /**
  * The Class PSQLConnector.
  */
 public class PSQLConnector extends
         DBConnector {
 
+    /**
+     * The query which reads the last reading of each datapoint within a time range, with
+     * one backward (dpid, rts) primary key lookup per datapoint.
+     */
+    private static final String STATE_QUERY = "SELECT d.dpid,r.rts,r.reading FROM datapoint d "
+            + "CROSS JOIN LATERAL (SELECT rts, reading FROM read_data_record "
+            + "WHERE dpid = d.dpid AND rts >= ? AND rts <= ? ORDER BY rts DESC LIMIT 1) r";
+
+    /** Whether windows are read with a binary COPY. */
+    private boolean copy;
+    /** The datapoints of the array literal. */
+    private String[] literalDpids;
+    /** The datapoints as an escaped text array literal, for the COPY query. */
+    private String dpidArrayLiteral;
 
     public PSQLConnector() {
     }
@@ -20,6 +47,112 @@ public class PSQLConnector extends
         Class.forName("org.postgresql.Driver");
     }
 
- 
+    @Override
+    public void setProperties(Properties properties) {
+        super.setProperties(properties);
+        this.copy = Boolean.parseBoolean(properties.getProperty("psql_copy"));
+    }
+
+    /**
+     * Reads the window with COPY (SELECT ...) TO STDOUT (FORMAT binary) when the COPY mode
+     * is on and the sink takes datapoint ids as bytes. The rows are parsed as they stream
+     * in, without a ResultSet.
+     */
+    @Override
+    protected Boolean bulkLoad(Connection conn, long fromTS, long toTS, String[] dpids, IReadingSink sink)
+            throws DatabaseConnectionException, InterruptedException {
+        if (!copy || !(sink instanceof IBinaryReadingSink)) {
+            return null;
+        }
+
+        final CopyBinaryParser parser = new CopyBinaryParser((IBinaryReadingSink) sink);
+        try {
+            ((PGConnection) conn).getCopyAPI().copyOut(getCopyQuery(fromTS, toTS, dpids), parser);
+            if (!conn.getAutoCommit()) {
+                conn.commit();
+            }
+            return parser.isFinished();
+        } catch (SQLException e) {
+            rollback(conn);
+            throw new DatabaseConnectionException("copy readings");
+        } catch (IOException e) {
+            // a stopped COPY aborts the transaction, which has to be ended before the
+            // session runs another query
+            rollback(conn);
+            if (parser.getInterruption() != null) {
+                throw parser.getInterruption();
+            } else if (parser.isStopped()) {
+                return false;
+            }
+            throw new DatabaseConnectionException("copy readings");
+        }
+    }
+
+    /**
+     * Rolls back the transaction of a session which does not auto commit.
+     *
+     * @param conn the connection of the session
+     */
+    private static void rollback(Connection conn) {
+        try {
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+            }
+        } catch (SQLException e) {
+            // the connection is broken, the next query fails and reconnects
+        }
+    }
+
+    /**
+     * Gets the COPY query of a window. COPY takes no parameters, so the datapoints go into
+     * the query as an escaped array literal.
+     *
+     * @param fromTS the lowest timestamp of the window, inclusive - seconds
+     * @param toTS the highest timestamp of the window, exclusive - seconds
+     * @param dpids the datapoints, or null for every datapoint
+     * @return the query
+     */
+    private String getCopyQuery(long fromTS, long toTS, String[] dpids) {
+        final StringBuilder query = new StringBuilder("COPY (SELECT dpid,rts,reading FROM ");
+        query.append(READINGS_TABLE).append(" WHERE rts >= ").append(fromTS).append(" AND rts < ").append(toTS);
+        if (dpids != null) {
+            if (dpids != literalDpids) {
+                final StringBuilder literal = new StringBuilder("'{");
+                for (int i = 0; i < dpids.length; i++) {
+                    literal.append(i == 0 ? "\"" : ",\"");
+                    literal.append(dpids[i].replace("\\", "\\\\").replace("\"", "\\\"").replace("'", "''"));
+                    literal.append('"');
+                }
+                dpidArrayLiteral = literal.append("}'::text[]").toString();
+                literalDpids = dpids;
+            }
+            query.append(" AND dpid = ANY(").append(dpidArrayLiteral).append(')');
+        }
+        return query.append(" ORDER BY rts) TO STDOUT (FORMAT binary)").toString();
+    }
+
+    @Override
+    protected String getStateQuery(String filter) {
+        return filter == null ? STATE_QUERY : STATE_QUERY + " WHERE d." + filter;
+    }
+
+    /**
+     * Every datapoint goes into a single filter, bound as one array parameter.
+     */
+    @Override
+    protected int getFilterBatchSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    protected String getDatapointFilter(int count) {
+        return "dpid = ANY(?)";
+    }
+
+    @Override
+    protected void setDatapointFilter(PreparedStatement st, int index, String[] dpids, int first, int last)
+            throws SQLException {
+        st.setArray(index, st.getConnection().createArrayOf("text", Arrays.copyOfRange(dpids, first, last)));
+    }
 
 }
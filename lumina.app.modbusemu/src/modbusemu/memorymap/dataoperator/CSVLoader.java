@@ -0,0 +1,218 @@
+package modbusemu.memorymap.dataoperator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import modbusemu.memorymap.DatapointRegistry;
+import modbusemu.memorymap.DelayedMemoryMap;
+
+/**
+ * The Class CSVLoader, which streams readings from a CSV file with one dpid,rts,reading
+ * line per reading, sorted by rts. Lines are parsed straight from the bytes read from the
+ * file channel, without allocating a String per line. Lines which cannot be parsed, such
+ * as a header line, are skipped.
+ */
+public class CSVLoader
+        extends ReadingLoader {
+    /** the size of the read buffer, which bounds the length of a line - bytes. */
+    private static final int BUFFER_SIZE = 1 << 20;
+    /** the CSV file. */
+    private final File csvFile;
+    /** the amount of simulated time loaded between look-ahead checks - seconds. */
+    private final long loadRate;
+    /** the registry resolving datapoint ids. */
+    private final DatapointRegistry registry;
+    /** the number of lines which could not be parsed. */
+    private long invalidLines;
+    /** the next timestamp at which the look-ahead is checked - seconds. */
+    private long nextCheck;
+    /** set once a reading at or after the highest timestamp was read. */
+    private boolean finished;
+    /** the end of the field being parsed, set by the parsing methods. */
+    private int fieldEnd;
+    /** Operator name. */
+    private final String name = "CSV Loader";
+
+    public CSVLoader(DelayedMemoryMap memMap,
+                     File csvFile,
+                     long loadRate,
+                     long loadAhead,
+                     long minTS,
+                     long maxTS) {
+        super(memMap, loadAhead, minTS, maxTS);
+        this.csvFile = csvFile;
+        this.loadRate = loadRate;
+        this.registry = memMap.getRegistry();
+        this.nextCheck = minTS;
+    }
+
+    /**
+     * Starts the CSV loader.
+     */
+    public void start() {
+        final long initTime = System.currentTimeMillis();
+        try {
+            final FileInputStream input = new FileInputStream(csvFile);
+            try {
+                load(input.getChannel());
+            } finally {
+                input.close();
+            }
+            System.err.println("CSV file loaded in " + (System.currentTimeMillis() - initTime)
+                    + " miliseconds, skipped " + unmappedReadings + " unmapped readings and "
+                    + invalidLines + " invalid lines");
+        } catch (IOException e) {
+            System.err.println("CSV file " + csvFile + " could not be read");
+        } catch (InterruptedException e) {
+            System.err.println("CSV Loader thread was interrupted");
+        }
+    }
+
+    /**
+     * Reads the file channel, parsing every complete line in the buffer before compacting
+     * the remaining partial line to the start of the buffer.
+     *
+     * @param channel the file channel
+     * @throws IOException the file could not be read
+     * @throws InterruptedException interrupted while waiting for the writer to drain
+     */
+    private void load(FileChannel channel) throws IOException, InterruptedException {
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        final byte[] bytes = buffer.array();
+
+        boolean eof = false;
+        while (!eof && !finished) {
+            eof = channel.read(buffer) < 0;
+            final int limit = buffer.position();
+
+            int lineStart = 0;
+            for (int i = 0; i < limit && !finished; i++) {
+                if (bytes[i] == '\n') {
+                    parseLine(bytes, lineStart, i);
+                    lineStart = i + 1;
+                }
+            }
+            if (eof && lineStart < limit && !finished) {
+                parseLine(bytes, lineStart, limit);
+                lineStart = limit;
+            }
+            if (lineStart == 0 && limit == bytes.length) {
+                throw new IOException("line longer than " + BUFFER_SIZE + " bytes");
+            }
+
+            System.arraycopy(bytes, lineStart, bytes, 0, limit - lineStart);
+            buffer.position(limit - lineStart);
+        }
+    }
+
+    /**
+     * Parses a dpid,rts,reading line and hands the reading over.
+     *
+     * @param bytes the buffer
+     * @param start the offset of the line
+     * @param end the offset of the line end, exclusive
+     * @throws InterruptedException interrupted while waiting for the writer to drain
+     */
+    private void parseLine(byte[] bytes, int start, int end) throws InterruptedException {
+        if (end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+        if (end == start) {
+            return;
+        }
+
+        final int comma = indexOf(bytes, start, end, (byte) ',');
+        if (comma < 0) {
+            invalidLines++;
+            return;
+        }
+        int dpidStart = start;
+        int dpidEnd = comma;
+        if (dpidEnd - dpidStart >= 2 && bytes[dpidStart] == '"' && bytes[dpidEnd - 1] == '"') {
+            dpidStart++;
+            dpidEnd--;
+        }
+
+        final long timestamp = parseLong(bytes, comma + 1, end);
+        if (fieldEnd < 0 || fieldEnd >= end || bytes[fieldEnd] != ',') {
+            invalidLines++;
+            return;
+        }
+        final long reading = parseLong(bytes, fieldEnd + 1, end);
+        if (fieldEnd != end) {
+            invalidLines++;
+            return;
+        }
+
+        if (timestamp < minTS) {
+            return;
+        } else if (timestamp >= maxTS) {
+            finished = true;
+            return;
+        }
+
+        final int id = registry.getId(bytes, dpidStart, dpidEnd - dpidStart);
+        if (id == DatapointRegistry.UNKNOWN) {
+            unmappedReadings++;
+            return;
+        }
+
+        if (timestamp >= nextCheck) {
+            awaitReplayClock(timestamp);
+            nextCheck = timestamp + loadRate;
+        }
+        memMap.writeDelayed(id, timestamp, reading);
+    }
+
+    /**
+     * Parses a decimal long, setting the field end to the offset of the first byte after
+     * the number, or to -1 if there is no number.
+     *
+     * @param bytes the buffer
+     * @param start the offset of the number
+     * @param end the offset of the line end, exclusive
+     * @return the number
+     */
+    private long parseLong(byte[] bytes, int start, int end) {
+        int i = start;
+        final boolean negative = i < end && bytes[i] == '-';
+        if (negative) {
+            i++;
+        }
+
+        final int digitsStart = i;
+        long value = 0;
+        while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+            value = value * 10 + (bytes[i] - '0');
+            i++;
+        }
+
+        fieldEnd = i == digitsStart ? -1 : i;
+        return negative ? -value : value;
+    }
+
+    private static int indexOf(byte[] bytes, int start, int end, byte value) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The CSV file is read as a stream, so the CSV loader does not support seeking.
+     */
+    @Override
+    public boolean isSeekable() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+}
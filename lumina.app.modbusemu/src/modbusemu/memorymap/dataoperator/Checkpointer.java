@@ -0,0 +1,90 @@
+package modbusemu.memorymap.dataoperator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import modbusemu.memorymap.DelayedMemoryMap;
+
+/**
+ * The Class Checkpointer, which periodically persists the timestamp being replayed, so that
+ * a restarted emulator resumes the replay where it stopped.
+ */
+public class Checkpointer
+        implements IDataOperator {
+    /** the charset of checkpoint files. */
+    private static final Charset CHARSET = Charset.forName("US-ASCII");
+    /** the checkpoint file. */
+    private final File checkpointFile;
+    /** the interval between checkpoints - mili seconds. */
+    private final long interval;
+    /** delayed memory. */
+    private final DelayedMemoryMap memMap;
+    /** Operator name. */
+    private final String name = "Checkpointer";
+
+    public Checkpointer(DelayedMemoryMap memMap, File checkpointFile, long interval) {
+        this.memMap = memMap;
+        this.checkpointFile = checkpointFile;
+        this.interval = interval;
+    }
+
+    /**
+     * Starts the checkpointer.
+     */
+    public void start() {
+        try {
+            while (true) {
+                Thread.sleep(interval);
+                checkpoint();
+            }
+        } catch (InterruptedException e) {
+            System.err.println("Checkpointer thread was interrupted");
+        }
+    }
+
+    /**
+     * Writes the timestamp being replayed into the checkpoint file. The file is replaced
+     * atomically, so a crash never leaves a partial checkpoint behind.
+     *
+     * @return the timestamp written - seconds, or -1 if the file could not be written
+     */
+    public synchronized long checkpoint() {
+        final long timestamp = memMap.getReplayedTS();
+        try {
+            final Path target = checkpointFile.toPath();
+            final Path temporary = new File(checkpointFile.getPath() + ".tmp").toPath();
+            Files.write(temporary, Long.toString(timestamp).getBytes(CHARSET));
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return timestamp;
+        } catch (IOException e) {
+            System.err.println("Checkpoint file " + checkpointFile + " could not be written");
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a checkpoint file.
+     *
+     * @param checkpointFile the checkpoint file
+     * @return the checkpoint timestamp - seconds
+     * @throws IOException the file could not be read or has no valid timestamp
+     */
+    public static long readCheckpoint(File checkpointFile) throws IOException {
+        final String content = new String(Files.readAllBytes(checkpointFile.toPath()), CHARSET);
+        try {
+            return Long.parseLong(content.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException(checkpointFile + " has no valid checkpoint");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+}
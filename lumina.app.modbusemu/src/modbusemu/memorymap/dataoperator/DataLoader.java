@@ -1,115 +1,264 @@
 package modbusemu.memorymap.dataoperator;
 
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.util.Map;
 
 import modbusemu.exception.DatabaseConnectionException;
+import modbusemu.memorymap.DatapointRegistry;
 import modbusemu.memorymap.DelayedMemoryMap;
+import modbusemu.memorymap.IReadingSink;
 import modbusemu.memorymap.databaseconnector.DBConnector;
 
 /**
- * The Class DataLoader.
+ * The Class DataLoader. The next window is read by a prefetcher thread while the current
+ * one is handed over to the memory map.
  */
 public class DataLoader
-        implements IDataOperator {
-    /** highest timestamp considered - seconds. */
-    private final long maxTS;
-    /** lowest timestamp considered - seconds. */
-    private final long minTS;
-    /** time rate between simulated time and real time being simulated . */
-    private final float timeRate;
+        extends ReadingLoader {
     /** the number of different timestamps loaded from the database on every query. */
     private final long loadRate;
     /** current timestamp. */
     private long currentTS;
     /** database connection. */
     private final DBConnector dbConn;
-    /** delayed memory. */
-    private final DelayedMemoryMap memMap;
-    /** the amount of nano seconds corresponding to one second. */
-    private final long oneSecondInNano = 1000000000L;
+    /** the registry resolving datapoint ids. */
+    private final DatapointRegistry registry;
     private final long oneHundredMili = 100;
+    /** the longest wait between reconnection attempts - miliseconds. */
+    private final long maxBackoff;
+    /** whether the database connection is up. */
+    private volatile boolean connected;
+    /** the number of times the connection was lost and established again. */
+    private volatile long reconnectCount;
+    /** the prefetcher reading the next windows. */
+    private final WindowPrefetcher prefetcher;
+    /** whether the readings of unmapped datapoints are counted when the loader starts. */
+    private final boolean countUnmapped;
     /** Operator name. */
     private final String name = "Data Loader";
 
     public DataLoader(DelayedMemoryMap memMap,
                       DBConnector dbConn,
                       long loadRate,
-                      float timeRate,
+                      long loadAhead,
                       long minTS,
-                      long maxTS) {
+                      long maxTS,
+                      boolean countUnmapped,
+                      long maxBackoff) {
+        super(memMap, loadAhead, minTS, maxTS);
         currentTS = minTS;
-        this.maxTS = maxTS;
         this.dbConn = dbConn;
-        this.memMap = memMap;
         this.loadRate = loadRate;
-        this.timeRate = timeRate;
-        this.minTS = minTS;
+        this.registry = memMap.getRegistry();
+        this.countUnmapped = countUnmapped;
+        this.maxBackoff = Math.max(oneHundredMili, maxBackoff);
+        this.prefetcher = new WindowPrefetcher(dbConn, registry, loadRate, maxTS);
+
+        final String[] dpids = new String[registry.size()];
+        for (int id = 0; id < dpids.length; id++) {
+            dpids[id] = registry.getDpid(id);
+        }
+        dbConn.setDatapoints(dpids);
     }
 
     /**
-     * Starts the data loader.
+     * Starts the data loader. The queries only read the mapped datapoints. Once the highest
+     * timestamp is loaded, the loader waits for seek requests. When the connection is lost,
+     * the loader reconnects and reads again the window it was on, as the current timestamp
+     * only moves past a window once all of it was handed over.
      */
     public void start() {
-        boolean suceeded = false;
-        
-        while (!suceeded) {
+        try {
+            connect();
+            if (countUnmapped) {
+                try {
+                    countUnmappedReadings();
+                } catch (DatabaseConnectionException e) {
+                    System.err.println("Unmapped readings could not be counted: " + e.getMessage());
+                }
+            }
+            prefetcher.start();
+            prefetcher.restart(currentTS);
+            while (true) {
+                try {
+                    if (isSeekPending()) {
+                        currentTS = seek() + 1;
+                    } else if (currentTS >= maxTS) {
+                        awaitSeek();
+                    } else {
+                        awaitReplayClock(currentTS);
+                        if (!isSeekPending()) {
+                            loadDatapoints();
+                        }
+                    }
+                } catch (DatabaseConnectionException e) {
+                    System.err.println(e.getMessage() + ", reconnecting to resume from timestamp "
+                            + currentTS);
+                    reconnect();
+                }
+            }
+        } catch (InterruptedException e) {
+            System.err.println("Data Loader thread was interrupted");
+        }
+    }
+
+    /**
+     * Establishes the database connection, retrying with an exponential backoff until it
+     * succeeds.
+     *
+     * @throws InterruptedException the loader thread was interrupted
+     */
+    private void connect() throws InterruptedException {
+        long backoff = oneHundredMili;
+        while (true) {
             try {
-                suceeded = dbConn.startConnection();
-                Thread.sleep(oneHundredMili);
-            } catch (InterruptedException e) {
-                System.err.println("Data Loader thread was interrupted");
+                synchronized (dbConn) {
+                    connected = dbConn.startConnection();
+                }
+                if (connected) {
+                    return;
+                }
             } catch (DatabaseConnectionException e) {
-                System.err.println("Connection establishment failed, retrying...");
+                System.err.println("Connection establishment failed, retrying in " + backoff
+                        + " miliseconds...");
             }
+            Thread.sleep(backoff);
+            backoff = Math.min(backoff * 2, maxBackoff);
+        }
+    }
+
+    /**
+     * Replaces a lost database connection and restarts the prefetcher from the current
+     * timestamp, the start of the window which was not fully loaded.
+     *
+     * @throws InterruptedException the loader thread was interrupted
+     */
+    private void reconnect() throws InterruptedException {
+        connected = false;
+        prefetcher.restart(maxTS);
+        synchronized (dbConn) {
+            try {
+                dbConn.closeConnection();
+            } catch (DatabaseConnectionException e) {
+                // the connection is already broken
+            }
+        }
+        connect();
+        reconnectCount++;
+        prefetcher.restart(currentTS);
+    }
+
+    /**
+     * Counts the readings of the unmapped datapoints in the replayed range, which the
+     * filtered queries do not read.
+     *
+     * @throws DatabaseConnectionException the database connection exception
+     */
+    private void countUnmappedReadings() throws DatabaseConnectionException {
+        long readings = 0;
+        int datapoints = 0;
+        for (Map.Entry<String, Long> count : dbConn.countReadings(minTS, maxTS).entrySet()) {
+            if (registry.getId(count.getKey()) == DatapointRegistry.UNKNOWN) {
+                readings += count.getValue();
+                datapoints++;
+            }
+        }
+        unmappedReadings = readings;
+        System.err.println("Skipping " + readings + " readings of " + datapoints
+                + " unmapped datapoints");
+    }
+
+    /**
+     * Load datapoints from a database, handing over the window read by the prefetcher, and
+     * moves to the next window once the whole window was loaded.
+     *
+     * @return true if the whole window was loaded, false if it was stopped by a seek
+     * @throws DatabaseConnectionException the database connection exception
+     * @throws InterruptedException interrupted while waiting for the writer to drain
+     */
+    public boolean loadDatapoints() throws DatabaseConnectionException, InterruptedException {
+        WindowPrefetcher.Chunk chunk = null;
+        while (chunk == null) {
+            if (isSeekPending()) {
+                return false;
+            }
+            chunk = prefetcher.take(currentTS, oneHundredMili);
         }
 
         try {
-            while (currentTS < maxTS) {
-                loadDatapoints();
-                currentTS += loadRate;
+            for (int i = 0; i < chunk.size(); i++) {
+                if (isSeekPending()) {
+                    return false;
+                }
+                memMap.writeDelayed(chunk.getId(i), chunk.getTimestamp(i), chunk.getValue(i));
             }
-            dbConn.closeConnection();
-        } catch (DatabaseConnectionException e) {
-            System.err.println(e.getMessage());
+            if (chunk.isCompleted()) {
+                currentTS = chunk.getToTS();
+                return true;
+            }
+            return false;
+        } finally {
+            prefetcher.release(chunk);
         }
     }
 
     /**
-     * Load datapoints from a database.
+     * Performs the pending seek, reading the state of the datapoints from the database.
      *
+     * @return the seek timestamp - seconds
      * @throws DatabaseConnectionException the database connection exception
+     * @throws InterruptedException the loader thread was interrupted
      */
-    public void loadDatapoints() throws DatabaseConnectionException {
+    private long seek() throws DatabaseConnectionException, InterruptedException {
+        final long timestamp = beginSeek();
+        final long[] state = newState();
+        prefetcher.restart(maxTS);
         try {
-            final long initTime = System.currentTimeMillis();
-            final String query = "SELECT dpid,rts,reading FROM read_data_record WHERE rts >= ? AND rts < ? ORDER BY rts";
-            final PreparedStatement st = dbConn.getPreparedStatement(query);
-            st.setLong(1, currentTS);
-            st.setLong(2, Math.min(currentTS + loadRate, maxTS));
-            final ResultSet rs = st.executeQuery();
-            while (rs.next()) {
-                final long timestamp = (long) (secondToNano(rs.getLong("rts") - minTS) * timeRate);
-                memMap.writeDelayed(rs.getString("dpid"), timestamp, rs.getLong("reading"));
+            synchronized (dbConn) {
+                dbConn.loadState(minTS, timestamp, new IReadingSink() {
+                    @Override
+                    public boolean onReading(String dpid, long rts, long reading) {
+                        final int id = registry.getId(dpid);
+                        if (id != DatapointRegistry.UNKNOWN) {
+                            state[id] = reading;
+                        }
+                        return true;
+                    }
+                });
+            }
+        } catch (DatabaseConnectionException e) {
+            // performed again once reconnected, unless another seek was requested
+            if (!isSeekPending()) {
+                memMap.seek(timestamp);
             }
-            rs.close();
-            st.close();
-            System.err.println("Data Loaded in " + (System.currentTimeMillis() - initTime)
-                    + " miliseconds");
-        } catch (SQLException e) {
-            throw new DatabaseConnectionException("process query statement");
+            throw e;
         }
+        finishSeek(timestamp, state);
+        prefetcher.restart(timestamp + 1);
+        return timestamp;
+    }
+
+    /**
+     * Whether the database connection is up.
+     *
+     * @return true if connected
+     */
+    public boolean isConnected() {
+        return connected;
     }
 
     /**
-     * Converts seconds to nano seconds.
-     * 
-     * @param second the amount of seconds
-     * @return the amount of nano seconds
+     * Gets the number of times the connection was lost and established again.
+     *
+     * @return the number of reconnections
      */
-    private long secondToNano(long second) {
-        return second * oneSecondInNano;
+    public long getReconnectCount() {
+        return reconnectCount;
+    }
+
+    @Override
+    public void appendStatus(StringBuilder status) {
+        status.append(" db_connected=").append(connected);
+        status.append(" db_reconnects=").append(reconnectCount);
     }
 
     @Override
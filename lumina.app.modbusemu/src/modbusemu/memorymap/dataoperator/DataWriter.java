@@ -1,11 +1,10 @@
 package modbusemu.memorymap.dataoperator;
 
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.concurrent.DelayQueue;
+import java.util.concurrent.locks.LockSupport;
 
 import modbusemu.memorymap.DelayedMemoryMap;
-import modbusemu.memorymap.SensorReading;
+import modbusemu.memorymap.ReplayBuffer;
+import modbusemu.memorymap.ReplayClock;
 
 /**
  * The Class DataTransferThread.
@@ -13,30 +12,190 @@ import modbusemu.memorymap.SensorReading;
 public class DataWriter
         implements IDataOperator {
 
-    /** Set of datapoint address(key) and corresponding delayQueue(value). */
-    private final Set<Entry<String, DelayQueue<SensorReading>>> readingQueues;
+    /** The conflation quantum which disables conflation. */
+    public static final long NO_CONFLATION = -1;
+    /** How many due readings are conflated between checks of the quantum, a power of two. */
+    private static final int TIME_CHECK = 64;
+
+    /** Time ordered buffer holding the readings of every datapoint. */
+    private final ReplayBuffer readings;
+    /** The replay clock. */
+    private final ReplayClock clock;
     /** The delayed memory. */
     private final DelayedMemoryMap memoryMap;
+    /** The number of values written, only updated by the writer. */
+    private volatile long writeCount;
+    /** The number of due readings replaced by a later reading of the same datapoint. */
+    private volatile long suppressedCount;
     /** Operator name. */
-    private final String name = "Data Writer";
+    private final String name;
+
+    /**
+     * How long due readings are conflated before they are written - nano, 0 conflates the
+     * readings due at each wake up of the writer, NO_CONFLATION writes every reading.
+     */
+    private final long conflationQuantum;
+    /** The latest due value of each datapoint, while conflating. */
+    private final long[] conflated;
+    /** The datapoint ids with a conflated value. */
+    private final boolean[] dirty;
+    /** The datapoint ids with a conflated value, in the order they became due. */
+    private final int[] dirtyIds;
+    /** The number of datapoint ids with a conflated value. */
+    private int dirtyCount;
+    /** The number of due readings taken while conflating. */
+    private int taken;
 
 
+    public DataWriter(DelayedMemoryMap memoryMap, ReplayBuffer readings, ReplayClock clock, int shard) {
+        this(memoryMap, readings, clock, shard, NO_CONFLATION);
+    }
+
+    /**
+     * Instantiates a new data writer which conflates due readings, keeping only the latest
+     * due value of each datapoint per quantum.
+     *
+     * @param memoryMap the delayed memory
+     * @param readings the buffer of the shard
+     * @param clock the replay clock
+     * @param shard the writer shard
+     * @param conflationQuantum how long due readings are conflated - nano, 0 conflates the
+     *            readings due at each wake up, NO_CONFLATION writes every reading
+     */
     public DataWriter(DelayedMemoryMap memoryMap,
-                      Set<Entry<String, DelayQueue<SensorReading>>> readingQueues) {
-        this.readingQueues = readingQueues;
+                      ReplayBuffer readings,
+                      ReplayClock clock,
+                      int shard,
+                      long conflationQuantum) {
+        this.readings = readings;
+        this.clock = clock;
         this.memoryMap = memoryMap;
+        this.name = "Data Writer " + shard;
+        this.conflationQuantum = conflationQuantum;
+        final int datapoints = conflationQuantum == NO_CONFLATION ? 0 : memoryMap.getRegistry().size();
+        this.conflated = new long[datapoints];
+        this.dirty = new boolean[datapoints];
+        this.dirtyIds = new int[datapoints];
     }
 
-    /** Starts the data writer. */
+    /**
+     * Starts the data writer. The writer sleeps until the reading at the head of the
+     * buffer is due, or until it is woken because the replay clock changed.
+     */
     public void start() {
-        while (true) {
-            for (Entry<String, DelayQueue<SensorReading>> entry : readingQueues) {
-                final SensorReading reading = entry.getValue().poll();
-                if (reading != null) {
-                    memoryMap.write(entry.getKey(), reading.getReading());
+        if (conflationQuantum != NO_CONFLATION) {
+            startConflating();
+            return;
+        }
+
+        try {
+            while (!Thread.interrupted()) {
+                readings.awaitReadings();
+
+                final long timestamp = readings.peekTimestamp();
+                if (timestamp != ReplayBuffer.IMMEDIATE) {
+                    final long delay = clock.delayUntil(timestamp);
+                    if (delay > 0) {
+                        LockSupport.parkNanos(this, delay);
+                        continue;
+                    }
+                    clock.markReplayed(timestamp);
                 }
+
+                memoryMap.write(readings.peekId(), readings.peekValue());
+                readings.advance();
+                writeCount++;
             }
+        } catch (InterruptedException e) {
+            // interrupted while waiting for readings
         }
+        System.err.println(name + " thread was interrupted");
+    }
+
+    /**
+     * Runs the writer conflating due readings. Due readings are collected until no reading
+     * is due, or the quantum elapsed, checked every TIME_CHECK readings while readings
+     * keep being due, and only the latest value of each datapoint is
+     * written. A polling master sees the same values, as the replaced readings would have
+     * been overwritten before it could read them.
+     */
+    private void startConflating() {
+        try {
+            long quantumEnd = 0;
+            while (!Thread.interrupted()) {
+                if (dirtyCount > 0 && readings.isEmpty()) {
+                    flush();
+                }
+                readings.awaitReadings();
+
+                final long timestamp = readings.peekTimestamp();
+                if (timestamp != ReplayBuffer.IMMEDIATE) {
+                    final long delay = clock.delayUntil(timestamp);
+                    if (delay > 0) {
+                        final long now = System.nanoTime();
+                        if (dirtyCount > 0 && now - quantumEnd >= 0) {
+                            flush();
+                        } else {
+                            LockSupport.parkNanos(this,
+                                    dirtyCount > 0 ? Math.min(delay, quantumEnd - now) : delay);
+                        }
+                        continue;
+                    }
+                    clock.markReplayed(timestamp);
+                }
+
+                final int id = readings.peekId();
+                if (dirty[id]) {
+                    suppressedCount++;
+                } else {
+                    if (dirtyCount == 0) {
+                        quantumEnd = System.nanoTime() + conflationQuantum;
+                    }
+                    dirty[id] = true;
+                    dirtyIds[dirtyCount++] = id;
+                }
+                conflated[id] = readings.peekValue();
+                readings.advance();
+                if ((++taken & TIME_CHECK - 1) == 0 && System.nanoTime() - quantumEnd >= 0) {
+                    flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            // interrupted while waiting for readings
+        }
+        System.err.println(name + " thread was interrupted");
+    }
+
+    /**
+     * Writes the conflated values.
+     */
+    private void flush() {
+        for (int i = 0; i < dirtyCount; i++) {
+            final int id = dirtyIds[i];
+            dirty[id] = false;
+            memoryMap.write(id, conflated[id]);
+        }
+        writeCount += dirtyCount;
+        dirtyCount = 0;
+    }
+
+    /**
+     * Gets the number of due readings which were not written, because a later reading of
+     * the same datapoint was due in the same quantum.
+     *
+     * @return the number of suppressed writes
+     */
+    public long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    /**
+     * Gets the number of values written.
+     *
+     * @return the number of values written
+     */
+    public long getWriteCount() {
+        return writeCount;
     }
 
     @Override
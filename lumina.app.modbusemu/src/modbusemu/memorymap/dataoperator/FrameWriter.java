@@ -0,0 +1,313 @@
+package modbusemu.memorymap.dataoperator;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import modbusemu.memorymap.DatapointRegistry;
+import modbusemu.memorymap.DelayedMemoryMap;
+import modbusemu.memorymap.ReplayBuffer;
+import modbusemu.memorymap.ReplayClock;
+
+/**
+ * The Class FrameWriter, a writer which replays in fixed frames of wall time instead of
+ * one reading at a time. Each frame it takes every reading due, keeps the latest value of
+ * each datapoint, and writes them in one batch per slave.
+ */
+public class FrameWriter
+        implements IDataOperator {
+
+    /** Time ordered buffer holding the readings of the shard. */
+    private final ReplayBuffer readings;
+    /** The replay clock. */
+    private final ReplayClock clock;
+    /** The delayed memory. */
+    private final DelayedMemoryMap memoryMap;
+    /** The datapoint registry. */
+    private final DatapointRegistry registry;
+    /** The frame length - nano. */
+    private final long frameLength;
+    /** Operator name. */
+    private final String name;
+
+    /** The latest due value of each datapoint in the frame. */
+    private final long[] frameValues;
+    /** The datapoint ids with a value in the frame. */
+    private final boolean[] dirty;
+    /** The datapoint ids with a value in the frame. */
+    private final int[] dirtyIds;
+    /** The number of datapoint ids with a value in the frame. */
+    private int dirtyCount;
+
+    /** The ids of the batch being written. */
+    private final int[] batchIds;
+    /** The registers of the batch being written. */
+    private final int[] batchRegisters;
+    /** The values of the batch being written. */
+    private final long[] batchValues;
+
+    /** The number of values written, only updated by the writer. */
+    private volatile long writeCount;
+    /** The number of due readings replaced by a later reading in the same frame. */
+    private volatile long suppressedCount;
+    /** The number of frames. */
+    private volatile long frameCount;
+    /** The sum of how late each frame started - nano. */
+    private volatile long totalJitter;
+    /** The most a frame started late - nano. */
+    private volatile long maxJitter;
+    /** The number of frames which followed another frame without an idle wait. */
+    private volatile long timedFrames;
+    /** The sum of the intervals between the starts of the timed frames - nano. */
+    private volatile long totalFrameTime;
+
+    /**
+     * Instantiates a new frame writer.
+     *
+     * @param memoryMap the delayed memory
+     * @param readings the buffer of the shard
+     * @param clock the replay clock
+     * @param shard the writer shard
+     * @param frameLength the frame length - nano
+     */
+    public FrameWriter(DelayedMemoryMap memoryMap,
+                       ReplayBuffer readings,
+                       ReplayClock clock,
+                       int shard,
+                       long frameLength) {
+        this.memoryMap = memoryMap;
+        this.readings = readings;
+        this.clock = clock;
+        this.registry = memoryMap.getRegistry();
+        this.frameLength = frameLength;
+        this.name = "Frame Writer " + shard;
+
+        final int datapoints = registry.size();
+        this.frameValues = new long[datapoints];
+        this.dirty = new boolean[datapoints];
+        this.dirtyIds = new int[datapoints];
+        this.batchIds = new int[datapoints];
+        this.batchRegisters = new int[datapoints];
+        this.batchValues = new long[datapoints];
+    }
+
+    /**
+     * Starts the frame writer. Frames start at fixed intervals from the first one, a late
+     * frame does not move the following ones. While there is nothing to write, the writer
+     * parks until a reading is buffered, the first reading is due or the clock changes, and
+     * the frames start again from there.
+     */
+    public void start() {
+        try {
+            long frameStart = System.nanoTime();
+            long lastStart = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                if (awaitWork(frameStart)) {
+                    final long now = System.nanoTime();
+                    if (now - frameStart > 0) {
+                        // woken after the frame was due, the frames start again from now
+                        frameStart = now;
+                        lastStart = 0;
+                    }
+                }
+                long now = System.nanoTime();
+                while (frameStart - now > 0) {
+                    LockSupport.parkNanos(this, frameStart - now);
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+                    now = System.nanoTime();
+                }
+
+                final long jitter = now - frameStart;
+                totalJitter += jitter;
+                maxJitter = Math.max(maxJitter, jitter);
+                if (lastStart != 0) {
+                    totalFrameTime += now - lastStart;
+                    timedFrames++;
+                }
+                lastStart = now;
+                frameCount++;
+
+                collectFrame();
+                writeFrame();
+
+                frameStart += frameLength;
+                if (now - frameStart > frameLength) {
+                    // more than a frame behind, skip the lost frames
+                    frameStart += (now - frameStart) / frameLength * frameLength;
+                }
+            }
+        } catch (InterruptedException e) {
+            // interrupted while waiting for readings
+        }
+        System.err.println(name + " thread was interrupted");
+    }
+
+    /**
+     * Waits while there is nothing to write: no reading is buffered, the clock is paused,
+     * or the first reading is not due before the next frame. The writer is unparked when a
+     * reading is buffered and when the clock changes.
+     *
+     * @param frameStart the start of the next frame - nano
+     * @return true if the writer waited, and the frames have to start again
+     * @throws InterruptedException interrupted while waiting
+     */
+    private boolean awaitWork(long frameStart) throws InterruptedException {
+        boolean waited = false;
+        while (true) {
+            if (!readings.hasReadings()) {
+                readings.awaitReadings();
+                waited = true;
+            }
+            final long timestamp = readings.peekTimestamp();
+            final long delay = timestamp == ReplayBuffer.IMMEDIATE ? 0 : clock.delayUntil(timestamp);
+            final long untilFrame = frameStart - System.nanoTime();
+            if (delay <= Math.max(untilFrame, 0) + frameLength) {
+                return waited;
+            }
+            if (delay == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, delay - frameLength);
+            }
+            waited = true;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Takes every reading due now, at most the readings buffered when the frame started so
+     * that an unthrottled replay still ends its frames.
+     */
+    private void collectFrame() {
+        if (!readings.hasReadings()) {
+            return;
+        }
+
+        final long horizon = clock.dueHorizon();
+        for (int remaining = readings.size(); remaining > 0; remaining--) {
+            final long timestamp = readings.peekTimestamp();
+            if (timestamp != ReplayBuffer.IMMEDIATE) {
+                if (timestamp > horizon) {
+                    break;
+                }
+                clock.markReplayed(timestamp);
+            }
+
+            final int id = readings.peekId();
+            if (dirty[id]) {
+                suppressedCount++;
+            } else {
+                dirty[id] = true;
+                dirtyIds[dirtyCount++] = id;
+            }
+            frameValues[id] = readings.peekValue();
+            readings.advance();
+        }
+    }
+
+    /**
+     * Writes the values of the frame, one batch per slave. Datapoint ids are sorted by slave,
+     * so sorting the ids groups the values of each slave.
+     */
+    private void writeFrame() {
+        Arrays.sort(dirtyIds, 0, dirtyCount);
+        int batchSize = 0;
+        for (int i = 0; i < dirtyCount; i++) {
+            final int id = dirtyIds[i];
+            dirty[id] = false;
+            if (batchSize > 0 && registry.getSlaveId(id) != registry.getSlaveId(batchIds[0])) {
+                memoryMap.writeBatch(batchIds, batchRegisters, batchValues, batchSize);
+                batchSize = 0;
+            }
+            batchIds[batchSize] = id;
+            batchValues[batchSize++] = frameValues[id];
+        }
+        if (batchSize > 0) {
+            memoryMap.writeBatch(batchIds, batchRegisters, batchValues, batchSize);
+        }
+        writeCount += dirtyCount;
+        dirtyCount = 0;
+    }
+
+    /**
+     * Gets the number of values written.
+     *
+     * @return the number of values written
+     */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Gets the number of due readings which were not written, because a later reading of
+     * the same datapoint was due in the same frame.
+     *
+     * @return the number of suppressed writes
+     */
+    public long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    /**
+     * Gets the number of frames.
+     *
+     * @return the number of frames
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Gets the frame length.
+     *
+     * @return the configured frame length - nano
+     */
+    public long getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * Gets the number of frames which followed another frame without an idle wait, whose
+     * interval from the previous frame was measured.
+     *
+     * @return the number of timed frames
+     */
+    public long getTimedFrames() {
+        return timedFrames;
+    }
+
+    /**
+     * Gets the sum of the measured intervals between the starts of consecutive frames.
+     *
+     * @return the total frame time - nano
+     */
+    public long getTotalFrameTime() {
+        return totalFrameTime;
+    }
+
+    /**
+     * Gets the sum of how late each frame started.
+     *
+     * @return the total jitter - nano
+     */
+    public long getTotalJitter() {
+        return totalJitter;
+    }
+
+    /**
+     * Gets the most a frame started late.
+     *
+     * @return the maximum jitter - nano
+     */
+    public long getMaxJitter() {
+        return maxJitter;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+}
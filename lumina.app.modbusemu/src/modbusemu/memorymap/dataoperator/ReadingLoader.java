@@ -0,0 +1,152 @@
+package modbusemu.memorymap.dataoperator;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import modbusemu.memorymap.DelayedMemoryMap;
+import modbusemu.memorymap.ReplayClock;
+
+/**
+ * The Class ReadingLoader, the base of the operators which load readings from a data
+ * source into the delayed memory map.
+ */
+public abstract class ReadingLoader
+        implements IDataOperator {
+    /** highest timestamp considered - seconds. */
+    protected final long maxTS;
+    /** lowest timestamp considered - seconds. */
+    protected final long minTS;
+    /**
+     * how far, in simulated seconds, the loader may run ahead of the replay clock. Zero
+     * means the loader is not bounded.
+     */
+    private final long loadAhead;
+    /** delayed memory. */
+    protected final DelayedMemoryMap memMap;
+    /** the number of readings of datapoints which are not mapped, only updated by the loader. */
+    protected volatile long unmappedReadings;
+
+    protected ReadingLoader(DelayedMemoryMap memMap, long loadAhead, long minTS, long maxTS) {
+        this.memMap = memMap;
+        this.loadAhead = loadAhead;
+        this.minTS = minTS;
+        this.maxTS = maxTS;
+    }
+
+    /**
+     * Gets the number of readings of the data source which were skipped because their
+     * datapoint is not mapped.
+     *
+     * @return the number of unmapped readings
+     */
+    public long getUnmappedReadings() {
+        return unmappedReadings;
+    }
+
+    /**
+     * Appends the metrics of the loader to a status report.
+     *
+     * @param status the status report
+     */
+    public void appendStatus(StringBuilder status) {
+        // the loaders without a connection have no metrics of their own
+    }
+
+    /**
+     * Whether the loader can move the replay to an arbitrary timestamp.
+     *
+     * @return true if the loader supports seeking
+     */
+    public boolean isSeekable() {
+        return true;
+    }
+
+    /**
+     * Starts the pending seek by discarding the readings which were not written yet. The
+     * loader then fills the state of the datapoints at the seek timestamp, that is the last
+     * reading of each datapoint between the lowest timestamp considered and the seek
+     * timestamp, and finishes the seek.
+     *
+     * @return the seek timestamp - seconds
+     */
+    protected long beginSeek() {
+        final long timestamp = memMap.takeSeek();
+        memMap.discardPending();
+        return timestamp;
+    }
+
+    /**
+     * Creates the state of the datapoints before any reading.
+     *
+     * @return the value of each datapoint id
+     */
+    protected long[] newState() {
+        final long[] state = new long[memMap.getRegistry().size()];
+        Arrays.fill(state, memMap.getInitValue());
+        return state;
+    }
+
+    /**
+     * Finishes the seek, writing the state of every datapoint and moving the replay clock
+     * to the seek timestamp. The loader continues after the seek timestamp.
+     *
+     * @param timestamp the seek timestamp - seconds
+     * @param state the value of each datapoint id at the seek timestamp
+     * @throws InterruptedException the loader thread was interrupted
+     */
+    protected void finishSeek(long timestamp, long[] state) throws InterruptedException {
+        for (int id = 0; id < state.length; id++) {
+            memMap.writeImmediate(id, state[id]);
+        }
+
+        memMap.getClock().seek(timestamp);
+        memMap.wakeWriter();
+        System.err.println("Replay moved to timestamp " + timestamp);
+    }
+
+    /**
+     * Whether a seek was requested and not performed yet.
+     *
+     * @return true if there is a pending seek
+     */
+    protected boolean isSeekPending() {
+        return memMap.isSeekPending();
+    }
+
+    /**
+     * Blocks until a seek is requested.
+     *
+     * @throws InterruptedException the loader thread was interrupted
+     */
+    protected void awaitSeek() throws InterruptedException {
+        while (!isSeekPending()) {
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Blocks while a timestamp is further than the look-ahead window from the timestamp
+     * being replayed, or until a seek is requested.
+     *
+     * @param timestamp the next timestamp to load - seconds
+     * @throws InterruptedException the loader thread was interrupted
+     */
+    protected void awaitReplayClock(long timestamp) throws InterruptedException {
+        if (loadAhead <= 0) {
+            return;
+        }
+
+        final ReplayClock clock = memMap.getClock();
+        long delay = clock.delayUntil(timestamp - loadAhead);
+        while (delay > 0 && !isSeekPending()) {
+            LockSupport.parkNanos(this, delay);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            delay = clock.delayUntil(timestamp - loadAhead);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package modbusemu.memorymap.dataoperator;
+
+import modbusemu.exception.TraceFileException;
+import modbusemu.memorymap.DatapointRegistry;
+import modbusemu.memorymap.DelayedMemoryMap;
+import modbusemu.memorymap.trace.TraceReader;
+
+/**
+ * The Class TraceLoader, which loads readings from a memory mapped trace file.
+ */
+public class TraceLoader
+        extends ReadingLoader {
+    /** The fewest records between two seek checkpoints. */
+    private static final int CHECKPOINT_RECORDS = 1 << 16;
+    /** The most datapoint values held by all the seek checkpoints together. */
+    private static final long MAX_CHECKPOINT_VALUES = 1 << 23;
+
+    /** the trace file. */
+    private final TraceReader trace;
+    /** the registry id of each datapoint of the trace dictionary. */
+    private final int[] registryIds;
+    /** the first record of the replayed range. */
+    private final long firstRecord;
+    /** the number of records between two seek checkpoints. */
+    private final long checkpointInterval;
+    /**
+     * the state of every datapoint id before each checkpoint record, the first record
+     * plus a multiple of the checkpoint interval. The first checkpoint is the initial state
+     * and is not stored.
+     */
+    private final long[][] checkpoints;
+    /** the amount of simulated time loaded between look-ahead checks - seconds. */
+    private final long loadRate;
+    /** Operator name. */
+    private final String name = "Trace Loader";
+
+    public TraceLoader(DelayedMemoryMap memMap,
+                       TraceReader trace,
+                       long loadRate,
+                       long loadAhead,
+                       long minTS,
+                       long maxTS) throws TraceFileException {
+        super(memMap, loadAhead, minTS, maxTS);
+        if (!trace.covers(minTS, maxTS)) {
+            throw new TraceFileException("replay " + minTS + " to " + maxTS + " from a trace of "
+                    + trace.getMinTS() + " to " + trace.getMaxTS());
+        }
+        this.trace = trace;
+        this.loadRate = loadRate;
+
+        final DatapointRegistry registry = memMap.getRegistry();
+        final String[] dpids = trace.getDpids();
+        registryIds = new int[dpids.length];
+        for (int i = 0; i < dpids.length; i++) {
+            registryIds[i] = registry.getId(dpids[i]);
+        }
+
+        firstRecord = trace.search(minTS);
+        final long records = trace.search(maxTS) - firstRecord;
+        checkpointInterval = Math.max(CHECKPOINT_RECORDS,
+                records * registry.size() / MAX_CHECKPOINT_VALUES + 1);
+        checkpoints = new long[(int) ((records + checkpointInterval - 1) / checkpointInterval)][];
+        indexCheckpoints(records);
+    }
+
+    /**
+     * Builds the seek index, one pass over the replayed range which snapshots the state of
+     * every datapoint each checkpoint interval.
+     *
+     * @param records the number of records of the replayed range
+     */
+    private void indexCheckpoints(long records) {
+        final long[] state = newState();
+        for (long i = 0; i < records; i++) {
+            if (i > 0 && i % checkpointInterval == 0) {
+                checkpoints[(int) (i / checkpointInterval)] = state.clone();
+            }
+            final int id = registryIds[trace.getDatapoint(firstRecord + i)];
+            if (id != DatapointRegistry.UNKNOWN) {
+                state[id] = trace.getValue(firstRecord + i);
+            }
+        }
+    }
+
+    /**
+     * Starts the trace loader. Once the highest timestamp is loaded, the loader waits for
+     * seek requests.
+     */
+    public void start() {
+        final long count = trace.getCount();
+        long record = trace.search(minTS);
+        long nextCheck = Long.MIN_VALUE;
+
+        try {
+            while (true) {
+                if (isSeekPending()) {
+                    record = trace.search(seek() + 1);
+                    nextCheck = Long.MIN_VALUE;
+                    continue;
+                }
+
+                final long timestamp = record < count ? trace.getTimestamp(record) : maxTS;
+                if (timestamp >= maxTS) {
+                    awaitSeek();
+                    continue;
+                }
+                if (timestamp >= nextCheck) {
+                    awaitReplayClock(timestamp);
+                    nextCheck = timestamp + loadRate;
+                    continue;
+                }
+
+                final int id = registryIds[trace.getDatapoint(record)];
+                if (id != DatapointRegistry.UNKNOWN) {
+                    memMap.writeDelayed(id, timestamp, trace.getValue(record));
+                } else {
+                    unmappedReadings++;
+                }
+                record++;
+            }
+        } catch (InterruptedException e) {
+            System.err.println("Trace Loader thread was interrupted");
+        }
+    }
+
+    /**
+     * Performs the pending seek. The state is the one of the last checkpoint before the
+     * seek timestamp, found by binary search, updated with the records from the checkpoint
+     * to the seek timestamp, at most about one checkpoint interval.
+     *
+     * @return the seek timestamp - seconds
+     * @throws InterruptedException the loader thread was interrupted
+     */
+    private long seek() throws InterruptedException {
+        final long timestamp = beginSeek();
+        final long end = trace.search(timestamp + 1);
+        final int checkpoint = (int) Math.min(Math.max(end - firstRecord, 0) / checkpointInterval,
+                Math.max(checkpoints.length - 1, 0));
+        final long[] state = checkpoint == 0 ? newState() : checkpoints[checkpoint].clone();
+
+        for (long record = firstRecord + checkpoint * checkpointInterval; record < end; record++) {
+            final int id = registryIds[trace.getDatapoint(record)];
+            if (id != DatapointRegistry.UNKNOWN) {
+                state[id] = trace.getValue(record);
+            }
+        }
+
+        finishSeek(timestamp, state);
+        return timestamp;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,237 @@
+package modbusemu.memorymap.dataoperator;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import modbusemu.exception.DatabaseConnectionException;
+import modbusemu.memorymap.DatapointRegistry;
+import modbusemu.memorymap.IBinaryReadingSink;
+import modbusemu.memorymap.databaseconnector.DBConnector;
+
+/**
+ * The Class WindowPrefetcher, which reads the next window of readings from the database on
+ * its own thread while the loader hands the current window over to the memory map. Windows
+ * are decoded into two reusable chunks, one is filled while the other is consumed.
+ * Database access is serialized by locking the connector.
+ */
+class WindowPrefetcher
+        extends Thread
+        implements IBinaryReadingSink {
+
+    /** The number of chunks. */
+    private static final int CHUNKS = 2;
+    /** The initial number of readings a chunk holds. */
+    private static final int INITIAL_CHUNK_SIZE = 1 << 16;
+
+    /**
+     * The Class Chunk, the readings of a window in columns.
+     */
+    static final class Chunk {
+        /** The lowest timestamp of the window - seconds. */
+        private long fromTS;
+        /** The highest timestamp of the window, exclusive - seconds. */
+        private long toTS;
+        /** The number of restarts when the window was requested. */
+        private long epoch;
+        /** Whether the whole window was read. */
+        private boolean completed;
+        /** The error which stopped the window, null if none. */
+        private DatabaseConnectionException error;
+        /** The number of readings. */
+        private int count;
+        /** The datapoint id of each reading. */
+        private int[] ids = new int[INITIAL_CHUNK_SIZE];
+        /** The timestamp of each reading - seconds. */
+        private long[] timestamps = new long[INITIAL_CHUNK_SIZE];
+        /** The value of each reading. */
+        private long[] values = new long[INITIAL_CHUNK_SIZE];
+
+        private void reset(long fromTS, long toTS, long epoch) {
+            this.fromTS = fromTS;
+            this.toTS = toTS;
+            this.epoch = epoch;
+            this.completed = false;
+            this.error = null;
+            this.count = 0;
+        }
+
+        private void add(int id, long timestamp, long value) {
+            if (count == ids.length) {
+                final int size = count * 2;
+                final int[] newIds = new int[size];
+                final long[] newTimestamps = new long[size];
+                final long[] newValues = new long[size];
+                System.arraycopy(ids, 0, newIds, 0, count);
+                System.arraycopy(timestamps, 0, newTimestamps, 0, count);
+                System.arraycopy(values, 0, newValues, 0, count);
+                ids = newIds;
+                timestamps = newTimestamps;
+                values = newValues;
+            }
+            ids[count] = id;
+            timestamps[count] = timestamp;
+            values[count++] = value;
+        }
+
+        long getToTS() {
+            return toTS;
+        }
+
+        boolean isCompleted() {
+            return completed;
+        }
+
+        int size() {
+            return count;
+        }
+
+        int getId(int i) {
+            return ids[i];
+        }
+
+        long getTimestamp(int i) {
+            return timestamps[i];
+        }
+
+        long getValue(int i) {
+            return values[i];
+        }
+    }
+
+    /** database connection. */
+    private final DBConnector dbConn;
+    /** the registry resolving datapoint ids. */
+    private final DatapointRegistry registry;
+    /** the number of different timestamps loaded on every query. */
+    private final long loadRate;
+    /** highest timestamp considered - seconds. */
+    private final long maxTS;
+
+    /** The chunks ready to be filled. */
+    private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(CHUNKS);
+    /** The chunks filled, in window order. */
+    private final BlockingQueue<Chunk> loaded = new ArrayBlockingQueue<Chunk>(CHUNKS);
+    /** The number of restarts, a chunk of an earlier epoch is discarded. */
+    private volatile long epoch;
+    /** The lowest timestamp of the next window to read - seconds, guarded by this. */
+    private long nextTS;
+    /** The chunk being filled. */
+    private Chunk filling;
+
+    WindowPrefetcher(DBConnector dbConn, DatapointRegistry registry, long loadRate, long maxTS) {
+        super("Window Prefetcher");
+        this.dbConn = dbConn;
+        this.registry = registry;
+        this.loadRate = loadRate;
+        this.maxTS = maxTS;
+        this.nextTS = maxTS;
+        for (int i = 0; i < CHUNKS; i++) {
+            free.add(new Chunk());
+        }
+        setDaemon(true);
+    }
+
+    /**
+     * Restarts reading windows from a timestamp. The window being read is stopped and the
+     * chunks read so far are discarded. Restarting from the highest timestamp stops reading.
+     *
+     * @param fromTS the lowest timestamp of the next window - seconds
+     */
+    synchronized void restart(long fromTS) {
+        epoch++;
+        nextTS = fromTS;
+        notifyAll();
+    }
+
+    /**
+     * Takes the chunk of the window starting at a timestamp, discarding the chunks of
+     * earlier windows. The chunk must be released once consumed.
+     *
+     * @param fromTS the lowest timestamp of the window - seconds
+     * @param waitMillis the longest to wait for the chunk - milliseconds
+     * @return the chunk, or null if it was not read yet
+     * @throws DatabaseConnectionException the window could not be read
+     * @throws InterruptedException the loader thread was interrupted
+     */
+    Chunk take(long fromTS, long waitMillis) throws DatabaseConnectionException, InterruptedException {
+        Chunk chunk;
+        while ((chunk = loaded.poll(waitMillis, TimeUnit.MILLISECONDS)) != null) {
+            if (chunk.epoch == epoch && chunk.fromTS == fromTS) {
+                if (chunk.error != null) {
+                    release(chunk);
+                    throw chunk.error;
+                }
+                return chunk;
+            }
+            release(chunk);
+        }
+        return null;
+    }
+
+    /**
+     * Releases a consumed chunk to be filled again.
+     *
+     * @param chunk the chunk
+     */
+    void release(Chunk chunk) {
+        free.add(chunk);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                final Chunk chunk = free.take();
+                synchronized (this) {
+                    while (nextTS >= maxTS) {
+                        wait();
+                    }
+                    chunk.reset(nextTS, dbConn.alignWindow(nextTS, Math.min(nextTS + loadRate, maxTS)), epoch);
+                    nextTS = chunk.toTS;
+                }
+
+                final long initTime = System.currentTimeMillis();
+                filling = chunk;
+                try {
+                    synchronized (dbConn) {
+                        if (chunk.epoch == epoch) {
+                            chunk.completed = dbConn.loadWindow(chunk.fromTS, chunk.toTS, this);
+                        }
+                    }
+                } catch (DatabaseConnectionException e) {
+                    chunk.error = e;
+                    synchronized (this) {
+                        // wait for the loader to reconnect and restart
+                        if (chunk.epoch == epoch) {
+                            nextTS = maxTS;
+                        }
+                    }
+                }
+                System.err.println("Data Loaded in " + (System.currentTimeMillis() - initTime)
+                        + " miliseconds");
+                loaded.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            System.err.println(getName() + " thread was interrupted");
+        }
+    }
+
+    @Override
+    public boolean onReading(String dpid, long timestamp, long reading) {
+        final int id = registry.getId(dpid);
+        if (id != DatapointRegistry.UNKNOWN) {
+            filling.add(id, timestamp, reading);
+        }
+        return filling.epoch == epoch;
+    }
+
+    @Override
+    public boolean onReading(byte[] dpid, int offset, int length, long timestamp, long reading) {
+        final int id = registry.getId(dpid, offset, length);
+        if (id != DatapointRegistry.UNKNOWN) {
+            filling.add(id, timestamp, reading);
+        }
+        return filling.epoch == epoch;
+    }
+}
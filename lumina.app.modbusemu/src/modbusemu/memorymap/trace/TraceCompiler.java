@@ -0,0 +1,94 @@
+package modbusemu.memorymap.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import modbusemu.exception.DatabaseConnectionException;
+import modbusemu.exception.TraceFileException;
+import modbusemu.memorymap.databaseconnector.DBConnector;
+
+/**
+ * The Class TraceCompiler, which streams the readings of the configured time range from the
+ * database into a trace file, so that later runs replay it without a database.
+ */
+public class TraceCompiler {
+
+    /** The database connector. */
+    private final DBConnector dbConn;
+    /** The trace file. */
+    private final File traceFile;
+    /** highest timestamp considered - seconds. */
+    private final long maxTS;
+    /** lowest timestamp considered - seconds. */
+    private final long minTS;
+    /** the number of different timestamps loaded from the database on every query. */
+    private final long loadRate;
+
+    /**
+     * Instantiates a new trace compiler.
+     *
+     * @param dbConn the database connector
+     * @param props emulator configuration properties
+     */
+    public TraceCompiler(DBConnector dbConn, Properties props) {
+        this.dbConn = dbConn;
+        this.traceFile = new File(props.getProperty("trace_file"));
+        this.minTS = Long.parseLong(props.getProperty("min_ts"));
+        this.maxTS = Long.parseLong(props.getProperty("max_ts"));
+        this.loadRate = Long.parseLong(props.getProperty("load_rate"));
+        dbConn.setProperties(props);
+    }
+
+    /**
+     * Compiles the trace file. The trace is written to a temporary file, which replaces the
+     * trace file only once every window was loaded, so a failed compile never leaves a
+     * trace that looks complete.
+     *
+     * @throws DatabaseConnectionException the database connection exception
+     * @throws TraceFileException the trace file could not be written
+     */
+    public void compile() throws DatabaseConnectionException, TraceFileException {
+        final long initTime = System.currentTimeMillis();
+        final File tempFile = new File(traceFile.getPath() + ".tmp");
+        TraceWriter writer = null;
+        boolean compiled = false;
+        try {
+            writer = new TraceWriter(tempFile);
+            dbConn.startConnection();
+            try {
+                long currentTS = minTS;
+                while (currentTS < maxTS) {
+                    final long windowEnd = dbConn.alignWindow(currentTS, Math.min(currentTS + loadRate, maxTS));
+                    final boolean loaded = dbConn.loadWindow(currentTS, windowEnd, writer);
+                    writer.checkError();
+                    if (!loaded) {
+                        throw new TraceFileException("compile " + traceFile + ", window " + currentTS
+                                + " was not fully loaded");
+                    }
+                    currentTS = windowEnd;
+                }
+            } finally {
+                dbConn.closeConnection();
+            }
+            writer.close(minTS, maxTS);
+            Files.move(tempFile.toPath(), traceFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            compiled = true;
+            System.err.println("Trace with " + writer.getCount() + " readings compiled in "
+                    + (System.currentTimeMillis() - initTime) + " miliseconds");
+        } catch (IOException e) {
+            throw new TraceFileException("write " + traceFile);
+        } catch (InterruptedException e) {
+            throw new TraceFileException("compile " + traceFile + ", it was interrupted");
+        } finally {
+            if (!compiled) {
+                if (writer != null) {
+                    writer.abort();
+                }
+                tempFile.delete();
+            }
+        }
+    }
+}
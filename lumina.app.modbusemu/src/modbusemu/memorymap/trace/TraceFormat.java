@@ -0,0 +1,40 @@
+package modbusemu.memorymap.trace;
+
+/**
+ * The Class TraceFormat, which describes the layout of a trace file.
+ * <p>
+ * A trace file starts with a fixed header: the magic number, the format version, the
+ * number of records, the lowest and highest timestamps of the traced range and the offset
+ * of the datapoint dictionary. Then follow the fixed width records, in timestamp order,
+ * each one with the read timestamp, the dictionary index of the datapoint and the reading
+ * value. The file ends with the dictionary: the number of datapoints followed by each
+ * datapoint id in modified UTF-8. All values are big endian.
+ */
+final class TraceFormat {
+
+    /** The magic number, "MBTR". */
+    static final int MAGIC = 0x4D425452;
+    /** The format version. */
+    static final int VERSION = 1;
+    /** The size of the header - bytes. */
+    static final int HEADER_SIZE = 40;
+    /** The size of a record - bytes. */
+    static final int RECORD_SIZE = 20;
+
+    /** The header offset of the number of records. */
+    static final int COUNT_OFFSET = 8;
+    /** The header offset of the lowest timestamp. */
+    static final int MIN_TS_OFFSET = 16;
+    /** The header offset of the highest timestamp. */
+    static final int MAX_TS_OFFSET = 24;
+    /** The header offset of the dictionary offset. */
+    static final int DICTIONARY_OFFSET = 32;
+
+    /** The record offset of the datapoint index. */
+    static final int ID_OFFSET = 8;
+    /** The record offset of the reading value. */
+    static final int VALUE_OFFSET = 12;
+
+    private TraceFormat() {
+    }
+}
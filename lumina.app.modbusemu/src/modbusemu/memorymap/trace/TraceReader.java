@@ -0,0 +1,183 @@
+package modbusemu.memorymap.trace;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * The Class TraceReader, a read only memory mapped view of a trace file.
+ */
+public class TraceReader {
+
+    /** The number of records mapped by each region, keeps regions below 2 GB. */
+    private static final int RECORDS_PER_REGION = (1 << 30) / TraceFormat.RECORD_SIZE;
+
+    /** The mapped regions of records. */
+    private final MappedByteBuffer[] regions;
+    /** The datapoints, by dictionary index. */
+    private final String[] dpids;
+    /** The number of records. */
+    private final long count;
+    /** The lowest timestamp of the traced range - seconds. */
+    private final long minTS;
+    /** The highest timestamp of the traced range - seconds. */
+    private final long maxTS;
+
+    /**
+     * Opens a trace file.
+     *
+     * @param traceFile the trace file
+     * @throws IOException the file could not be read or is not a valid trace file
+     */
+    public TraceReader(File traceFile) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(traceFile, "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            if (channel.size() < TraceFormat.HEADER_SIZE) {
+                throw new IOException(traceFile + " is too short for a trace header");
+            }
+            final ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, TraceFormat.HEADER_SIZE);
+            if (header.getInt(0) != TraceFormat.MAGIC) {
+                throw new IOException(traceFile + " is not a trace file");
+            }
+            if (header.getInt(4) != TraceFormat.VERSION) {
+                throw new IOException(traceFile + " has an unsupported trace version");
+            }
+            count = header.getLong(TraceFormat.COUNT_OFFSET);
+            minTS = header.getLong(TraceFormat.MIN_TS_OFFSET);
+            maxTS = header.getLong(TraceFormat.MAX_TS_OFFSET);
+            final long dictionaryOffset = header.getLong(TraceFormat.DICTIONARY_OFFSET);
+            // the dictionary follows the records, a mismatch means a truncated or corrupt file
+            if (count < 0 || count > (channel.size() - TraceFormat.HEADER_SIZE) / TraceFormat.RECORD_SIZE
+                    || dictionaryOffset != TraceFormat.HEADER_SIZE + count * TraceFormat.RECORD_SIZE) {
+                throw new IOException(traceFile + " holds " + count + " records ending at "
+                        + dictionaryOffset + " in " + channel.size() + " bytes, it is truncated or corrupt");
+            }
+
+            regions = new MappedByteBuffer[(int) ((count + RECORDS_PER_REGION - 1) / RECORDS_PER_REGION)];
+            for (int i = 0; i < regions.length; i++) {
+                final long first = (long) i * RECORDS_PER_REGION;
+                final long records = Math.min(RECORDS_PER_REGION, count - first);
+                regions[i] = channel.map(MapMode.READ_ONLY,
+                        TraceFormat.HEADER_SIZE + first * TraceFormat.RECORD_SIZE,
+                        records * TraceFormat.RECORD_SIZE);
+            }
+
+            final byte[] dictionary = new byte[(int) (channel.size() - dictionaryOffset)];
+            channel.map(MapMode.READ_ONLY, dictionaryOffset, dictionary.length).get(dictionary);
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(dictionary));
+            try {
+                dpids = new String[in.readInt()];
+                for (int i = 0; i < dpids.length; i++) {
+                    dpids[i] = in.readUTF();
+                }
+            } catch (EOFException e) {
+                throw new IOException(traceFile + " has a truncated dictionary");
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Gets the number of records.
+     *
+     * @return the number of records
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Whether the trace holds every reading of a time range.
+     *
+     * @param fromTS the lowest timestamp of the range - seconds
+     * @param toTS the highest timestamp of the range - seconds
+     * @return true if the traced range covers the range
+     */
+    public boolean covers(long fromTS, long toTS) {
+        return minTS <= fromTS && toTS <= maxTS;
+    }
+
+    public long getMinTS() {
+        return minTS;
+    }
+
+    public long getMaxTS() {
+        return maxTS;
+    }
+
+    /**
+     * Gets the datapoint dictionary.
+     *
+     * @return the datapoint ids, by dictionary index
+     */
+    public String[] getDpids() {
+        return dpids.clone();
+    }
+
+    /**
+     * Gets the timestamp of a record.
+     *
+     * @param record the record index
+     * @return the read timestamp - seconds
+     */
+    public long getTimestamp(long record) {
+        return region(record).getLong(position(record));
+    }
+
+    /**
+     * Gets the datapoint of a record.
+     *
+     * @param record the record index
+     * @return the dictionary index of the datapoint
+     */
+    public int getDatapoint(long record) {
+        return region(record).getInt(position(record) + TraceFormat.ID_OFFSET);
+    }
+
+    /**
+     * Gets the reading value of a record.
+     *
+     * @param record the record index
+     * @return the reading value
+     */
+    public long getValue(long record) {
+        return region(record).getLong(position(record) + TraceFormat.VALUE_OFFSET);
+    }
+
+    /**
+     * Finds the first record with a timestamp not lower than the given one.
+     *
+     * @param timestamp the timestamp - seconds
+     * @return the record index, or the number of records if there is none
+     */
+    public long search(long timestamp) {
+        long low = 0;
+        long high = count;
+        while (low < high) {
+            final long middle = (low + high) >>> 1;
+            if (getTimestamp(middle) < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private ByteBuffer region(long record) {
+        return regions[(int) (record / RECORDS_PER_REGION)];
+    }
+
+    private int position(long record) {
+        return (int) (record % RECORDS_PER_REGION) * TraceFormat.RECORD_SIZE;
+    }
+}
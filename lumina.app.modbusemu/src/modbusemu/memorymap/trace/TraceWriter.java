@@ -0,0 +1,170 @@
+package modbusemu.memorymap.trace;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import modbusemu.memorymap.IReadingSink;
+
+/**
+ * The Class TraceWriter, which streams readings, in timestamp order, into a trace file.
+ */
+public class TraceWriter
+        implements IReadingSink {
+
+    /** The size of the write buffer - bytes. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** The file being written. */
+    private final RandomAccessFile file;
+    /** The channel of the file being written. */
+    private final FileChannel channel;
+    /** The write buffer. */
+    private final ByteBuffer buffer;
+    /** The dictionary index of each datapoint. */
+    private final Map<String, Integer> dictionary;
+    /** The datapoints, by dictionary index. */
+    private final List<String> dpids;
+    /** The number of records written. */
+    private long count;
+    /** The error which stopped writing, null if none. */
+    private IOException error;
+
+    /**
+     * Creates a trace file, replacing any existing one.
+     *
+     * @param traceFile the trace file
+     * @throws IOException the file could not be created
+     */
+    public TraceWriter(File traceFile) throws IOException {
+        file = new RandomAccessFile(traceFile, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        dictionary = new HashMap<String, Integer>();
+        dpids = new ArrayList<String>();
+        buffer.position(TraceFormat.HEADER_SIZE);
+    }
+
+    @Override
+    public boolean onReading(String dpid, long timestamp, long reading) {
+        Integer index = dictionary.get(dpid);
+        if (index == null) {
+            index = dpids.size();
+            dictionary.put(dpid, index);
+            dpids.add(dpid);
+        }
+
+        if (error != null) {
+            return false;
+        }
+        try {
+            if (buffer.remaining() < TraceFormat.RECORD_SIZE) {
+                flush();
+            }
+        } catch (IOException e) {
+            // stops the window, the compiler rethrows the error
+            error = e;
+            return false;
+        }
+        buffer.putLong(timestamp);
+        buffer.putInt(index);
+        buffer.putLong(reading);
+        count++;
+        return true;
+    }
+
+    /**
+     * Gets the number of records written.
+     *
+     * @return the number of records
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Throws the error which stopped writing, if any.
+     *
+     * @throws IOException the file could not be written
+     */
+    public void checkError() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Closes the file without writing the header, leaving it unreadable as a trace.
+     */
+    public void abort() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            // the file is deleted anyway
+        }
+    }
+
+    /**
+     * Writes the dictionary and the header and closes the file.
+     *
+     * @param minTS the lowest timestamp of the traced range - seconds
+     * @param maxTS the highest timestamp of the traced range - seconds
+     * @throws IOException the file could not be written
+     */
+    public void close(long minTS, long maxTS) throws IOException {
+        try {
+            checkError();
+            flush();
+            final long dictionaryOffset = channel.position();
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(dpids.size());
+            for (String dpid : dpids) {
+                out.writeUTF(dpid);
+            }
+            out.close();
+            write(ByteBuffer.wrap(bytes.toByteArray()));
+
+            final ByteBuffer header = ByteBuffer.allocate(TraceFormat.HEADER_SIZE);
+            header.putInt(TraceFormat.MAGIC);
+            header.putInt(TraceFormat.VERSION);
+            header.putLong(TraceFormat.COUNT_OFFSET, count);
+            header.putLong(TraceFormat.MIN_TS_OFFSET, minTS);
+            header.putLong(TraceFormat.MAX_TS_OFFSET, maxTS);
+            header.putLong(TraceFormat.DICTIONARY_OFFSET, dictionaryOffset);
+            header.clear();
+            channel.position(0);
+            write(header);
+            channel.force(true);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Writes the buffered records to the file.
+     *
+     * @throws IOException the file could not be written
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+    }
+
+    private void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * This package contains the binary trace cache.
+ */
+
+package modbusemu.memorymap.trace;
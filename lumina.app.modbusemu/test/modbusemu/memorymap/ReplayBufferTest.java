@@ -0,0 +1,118 @@
+package modbusemu.memorymap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The Class ReplayBufferTest.
+ */
+public class ReplayBufferTest {
+
+    @Test
+    public void roundsCapacityUpToPowerOfTwo() throws InterruptedException {
+        final ReplayBuffer buffer = new ReplayBuffer(5);
+        for (int i = 0; i < 8; i++) {
+            buffer.put(i, i, i);
+        }
+        assertEquals(8, buffer.size());
+    }
+
+    @Test
+    public void keepsReadingsInOrderAcrossWraparound() throws InterruptedException {
+        final ReplayBuffer buffer = new ReplayBuffer(4);
+        long next = 0;
+        for (long produced = 0; produced < 1000; produced++) {
+            buffer.put(produced, (int) produced, -produced);
+            if (buffer.size() == 3) {
+                for (int i = 0; i < 2; i++) {
+                    assertReading(buffer, next++);
+                }
+            }
+        }
+        while (buffer.hasReadings()) {
+            assertReading(buffer, next++);
+        }
+        assertEquals(1000, next);
+        assertTrue(buffer.isEmpty());
+    }
+
+    private static void assertReading(ReplayBuffer buffer, long expected) {
+        assertEquals(expected, buffer.peekTimestamp());
+        assertEquals(expected, buffer.peekId());
+        assertEquals(-expected, buffer.peekValue());
+        buffer.advance();
+    }
+
+    @Test
+    public void keepsImmediateTimestamps() throws InterruptedException {
+        final ReplayBuffer buffer = new ReplayBuffer(2);
+        buffer.put(ReplayBuffer.IMMEDIATE, 7, 42);
+        assertEquals(ReplayBuffer.IMMEDIATE, buffer.peekTimestamp());
+    }
+
+    @Test(timeout = 10000)
+    public void blocksFullProducerUntilAdvance() throws InterruptedException {
+        final ReplayBuffer buffer = new ReplayBuffer(2);
+        buffer.put(0, 0, 0);
+        buffer.put(1, 1, 1);
+
+        final Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    buffer.put(2, 2, 2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+        assertEquals(2, buffer.size());
+
+        buffer.advance();
+        producer.join();
+        assertEquals(2, buffer.size());
+        assertEquals(1, buffer.peekTimestamp());
+    }
+
+    @Test
+    public void discardSkipsReadingsProducedSoFar() throws InterruptedException {
+        final ReplayBuffer buffer = new ReplayBuffer(4);
+        for (int i = 0; i < 3; i++) {
+            buffer.put(i, i, i);
+        }
+        buffer.advance();
+        buffer.discard();
+        assertFalse(buffer.hasReadings());
+
+        buffer.put(3, 3, 3);
+        buffer.awaitReadings();
+        assertEquals(1, buffer.size());
+        assertEquals(3, buffer.peekTimestamp());
+    }
+
+    @Test(timeout = 10000)
+    public void putWakesWaitingConsumer() throws InterruptedException {
+        final ReplayBuffer buffer = new ReplayBuffer(4);
+        final Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    buffer.awaitReadings();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        consumer.start();
+        Thread.sleep(100);
+        buffer.put(5, 5, 5);
+        consumer.join();
+        assertEquals(5, buffer.peekTimestamp());
+    }
+}
@@ -0,0 +1,101 @@
+package modbusemu.memorymap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import modbusemu.memorymap.ReplayClock.Mode;
+
+/**
+ * The Class ReplayClockTest. A time rate of 1 replays a simulated second per real second,
+ * so that the position barely moves while a check runs, a time rate of 1e-9 replays a
+ * simulated second per real nano second, so that it visibly moves within milliseconds.
+ */
+public class ReplayClockTest {
+
+    private static final float FAST = 1e-9f;
+
+    private static final long ONE_SECOND_IN_NANO = 1000000000L;
+
+    @Test
+    public void pauseFreezesPosition() throws InterruptedException {
+        final ReplayClock clock = new ReplayClock(1000, FAST);
+        clock.start();
+        clock.pause();
+        final long paused = clock.currentTS();
+        Thread.sleep(20);
+
+        assertEquals(Mode.PAUSED, clock.getMode());
+        assertEquals(paused, clock.currentTS());
+        assertEquals(Long.MAX_VALUE, clock.delayUntil(paused));
+        assertEquals(Long.MIN_VALUE, clock.dueHorizon());
+    }
+
+    @Test
+    public void seekWhilePausedStaysPaused() {
+        final ReplayClock clock = new ReplayClock(1000, FAST);
+        clock.pause();
+        clock.seek(5000);
+
+        assertEquals(Mode.PAUSED, clock.getMode());
+        assertEquals(5000, clock.currentTS());
+        assertEquals(Long.MAX_VALUE, clock.delayUntil(5000));
+    }
+
+    @Test
+    public void resumeRunsFromSeekPosition() {
+        final ReplayClock clock = new ReplayClock(1000, 1f);
+        clock.start();
+        clock.pause();
+        clock.seek(5000);
+        clock.resume();
+
+        assertEquals(Mode.RUNNING, clock.getMode());
+        assertInRange(5000, 5001, clock.currentTS());
+        assertInRange(9 * ONE_SECOND_IN_NANO, 10 * ONE_SECOND_IN_NANO, clock.delayUntil(5010));
+    }
+
+    @Test
+    public void seekWhileRunningReplaysTimestampNow() {
+        final ReplayClock clock = new ReplayClock(1000, 1f);
+        clock.start();
+        clock.seek(2000);
+
+        assertInRange(2000, 2001, clock.currentTS());
+        assertTrue(clock.delayUntil(2000) <= 0);
+        assertTrue(clock.delayUntil(2002) > ONE_SECOND_IN_NANO);
+    }
+
+    @Test
+    public void setTimeRateRunsFromPausedPosition() throws InterruptedException {
+        final ReplayClock clock = new ReplayClock(1000, 1f);
+        clock.start();
+        clock.pause();
+        clock.setTimeRate(FAST);
+        Thread.sleep(10);
+
+        assertEquals(Mode.RUNNING, clock.getMode());
+        assertTrue(clock.currentTS() > 1000 + 1000000);
+    }
+
+    @Test
+    public void unthrottledClockFollowsReplayedTimestamps() {
+        final ReplayClock clock = new ReplayClock(1000, 1f);
+        clock.unthrottle();
+
+        assertEquals(0, clock.delayUntil(Long.MAX_VALUE / 2));
+        assertEquals(Long.MAX_VALUE, clock.dueHorizon());
+        clock.markReplayed(3000);
+        assertEquals(3000, clock.currentTS());
+
+        clock.pause();
+        assertEquals(3000, clock.currentTS());
+        clock.markReplayed(4000);
+        assertEquals(3000, clock.currentTS());
+    }
+
+    private static void assertInRange(long min, long max, long actual) {
+        assertTrue(actual + " not in [" + min + ", " + max + "]", min <= actual && actual <= max);
+    }
+}
@@ -0,0 +1,208 @@
+package modbusemu.memorymap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import modbusemu.memorymap.DelayedMemoryMap.IWriteListener;
+import modbusemu.memorymap.WriteDispatcher.OverflowPolicy;
+
+/**
+ * The Class WriteDispatcherTest. The listener stalls on the first event it receives until
+ * it is released, so that the producer runs a known number of events ahead of it.
+ */
+public class WriteDispatcherTest {
+
+    /** The ring capacity, the consumer is a whole ring behind after this many events. */
+    private static final int CAPACITY = 8;
+    /** The number of events published. */
+    private static final int EVENTS = 100;
+
+    /**
+     * The Class StallingListener, which records the writes as "slave:register=value".
+     */
+    private static final class StallingListener
+            implements IWriteListener {
+        private final List<String> writes = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        @Override
+        public void onWrite(int slaveId, int nRegister, long value, DelayedMemoryMap client) {
+            entered.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writes.add(slaveId + ":" + nRegister + "=" + value);
+        }
+    }
+
+    /**
+     * The Class FixedMemoryMap, a delayed memory of two datapoints with fixed values, a on
+     * register 10 of slave 1 and b on register 20 of slave 2.
+     */
+    private static final class FixedMemoryMap
+            extends DelayedMemoryMap {
+        private final DatapointRegistry registry;
+        private final long[] values = {111, 222 };
+
+        private FixedMemoryMap() {
+            final Map<String, Integer> slaves = new HashMap<String, Integer>();
+            final Map<String, Integer> registers = new HashMap<String, Integer>();
+            slaves.put("a", 1);
+            registers.put("a", 10);
+            slaves.put("b", 2);
+            registers.put("b", 20);
+            registry = new DatapointRegistry(slaves, registers);
+        }
+
+        @Override
+        public DatapointRegistry getRegistry() {
+            return registry;
+        }
+
+        @Override
+        public long getValue(int id) {
+            return values[id];
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void blockPolicyWaitsForConsumer() throws InterruptedException {
+        final StallingListener listener = new StallingListener();
+        final WriteDispatcher dispatcher = newDispatcher(null, listener, OverflowPolicy.BLOCK);
+        final Thread producer = publishingThread(dispatcher);
+        producer.start();
+        listener.entered.await();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+
+        listener.released.countDown();
+        producer.join();
+        awaitMetric(dispatcher, "delivered", EVENTS);
+        assertEquals(writes(0, EVENTS), listener.writes);
+        assertEquals(0, metric(dispatcher, "dropped"));
+    }
+
+    @Test(timeout = 10000)
+    public void blockedProducerDropsEventsOnceInterrupted() throws InterruptedException {
+        final StallingListener listener = new StallingListener();
+        final WriteDispatcher dispatcher = newDispatcher(null, listener, OverflowPolicy.BLOCK);
+        final Thread producer = publishingThread(dispatcher);
+        producer.start();
+        listener.entered.await();
+        producer.join(200);
+        producer.interrupt();
+        producer.join();
+
+        listener.released.countDown();
+        awaitMetric(dispatcher, "delivered", CAPACITY);
+        assertEquals(writes(0, CAPACITY), listener.writes);
+        assertEquals(EVENTS - CAPACITY, metric(dispatcher, "dropped"));
+    }
+
+    @Test(timeout = 10000)
+    public void dropOldestPolicyKeepsNewestEvents() throws InterruptedException {
+        final StallingListener listener = new StallingListener();
+        final WriteDispatcher dispatcher = newDispatcher(null, listener, OverflowPolicy.DROP_OLDEST);
+        publishAhead(dispatcher, listener);
+
+        // the consumer resumes a ring behind the producer, less the slot being written
+        final int kept = CAPACITY - 1;
+        awaitMetric(dispatcher, "delivered", 1 + kept);
+        final List<String> expected = writes(0, 1);
+        expected.addAll(writes(EVENTS - kept, EVENTS));
+        assertEquals(expected, listener.writes);
+        assertEquals(EVENTS - 1 - kept, metric(dispatcher, "dropped"));
+    }
+
+    @Test(timeout = 10000)
+    public void conflatePolicyDeliversLatestValues() throws InterruptedException {
+        final StallingListener listener = new StallingListener();
+        final WriteDispatcher dispatcher = newDispatcher(new FixedMemoryMap(), listener,
+                OverflowPolicy.CONFLATE);
+        publishAhead(dispatcher, listener);
+
+        awaitMetric(dispatcher, "conflated", EVENTS - 1);
+        dispatcher.publish(0, 1, 10, EVENTS);
+        awaitMetric(dispatcher, "delivered", 2);
+        assertEquals(Arrays.asList("1:10=0", "1:10=111", "2:20=222", "1:10=" + EVENTS), listener.writes);
+        assertEquals(EVENTS - 1, metric(dispatcher, "conflated"));
+        assertEquals(0, metric(dispatcher, "dropped"));
+    }
+
+    private static WriteDispatcher newDispatcher(DelayedMemoryMap memMap,
+                                                 IWriteListener listener,
+                                                 OverflowPolicy policy) {
+        final WriteDispatcher dispatcher = new WriteDispatcher(memMap, 0, new int[] {0, 1 },
+                new IWriteListener[] {listener }, CAPACITY, policy);
+        dispatcher.start();
+        return dispatcher;
+    }
+
+    private static Thread publishingThread(final WriteDispatcher dispatcher) {
+        return new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < EVENTS; i++) {
+                    dispatcher.publish(0, 1, 10, i);
+                }
+            }
+        };
+    }
+
+    /**
+     * Publishes every event while the listener stalls on the first one, then releases it.
+     */
+    private static void publishAhead(WriteDispatcher dispatcher, StallingListener listener)
+            throws InterruptedException {
+        dispatcher.publish(0, 1, 10, 0);
+        listener.entered.await();
+        for (int i = 1; i < EVENTS; i++) {
+            dispatcher.publish(0, 1, 10, i);
+        }
+        listener.released.countDown();
+    }
+
+    private static List<String> writes(int from, int to) {
+        final List<String> writes = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            writes.add("1:10=" + i);
+        }
+        return writes;
+    }
+
+    /**
+     * Waits until a metric of the consumer reaches a count, the metrics of an event are
+     * updated after the listener returns.
+     */
+    private static void awaitMetric(WriteDispatcher dispatcher, String name, long count)
+            throws InterruptedException {
+        while (metric(dispatcher, name) < count) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static long metric(WriteDispatcher dispatcher, String name) {
+        final StringBuilder status = new StringBuilder();
+        dispatcher.appendStatus(status);
+        final String key = "write_dispatcher_0.0." + name + "=";
+        final int start = status.indexOf(key) + key.length();
+        int end = start;
+        while (end < status.length() && status.charAt(end) != ' ') {
+            end++;
+        }
+        return Long.parseLong(status.substring(start, end));
+    }
+}
@@ -0,0 +1,190 @@
+package modbusemu.memorymap.databaseconnector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import modbusemu.memorymap.IBinaryReadingSink;
+
+/**
+ * The Class CopyBinaryParserTest.
+ */
+public class CopyBinaryParserTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0 };
+
+    /**
+     * The Class RecordingSink, which records the readings as "dpid@timestamp=reading" and
+     * stops after a number of readings.
+     */
+    private static class RecordingSink
+            implements IBinaryReadingSink {
+        private final List<String> readings = new ArrayList<String>();
+        private final int limit;
+
+        RecordingSink(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean onReading(byte[] dpid, int offset, int length, long timestamp, long reading)
+                throws InterruptedException {
+            return onReading(new String(dpid, offset, length, UTF_8), timestamp, reading);
+        }
+
+        @Override
+        public boolean onReading(String dpid, long timestamp, long reading) throws InterruptedException {
+            readings.add(dpid + "@" + timestamp + "=" + reading);
+            return readings.size() < limit;
+        }
+    }
+
+    @Test
+    public void parsesRowsWrittenByteByByte() throws IOException {
+        final RecordingSink sink = new RecordingSink(Integer.MAX_VALUE);
+        final CopyBinaryParser parser = new CopyBinaryParser(sink);
+        for (byte b : copy(true, "a", "dp-2", "\u00e9")) {
+            parser.write(b);
+        }
+
+        assertTrue(parser.isFinished());
+        assertEquals(expected("a", "dp-2", "\u00e9"), sink.readings);
+    }
+
+    @Test
+    public void parsesRowsSplitAcrossWrites() throws IOException {
+        final String[] dpids = new String[1000];
+        for (int i = 0; i < dpids.length; i++) {
+            dpids[i] = "datapoint-" + i;
+        }
+        final byte[] copy = copy(true, dpids);
+
+        final RecordingSink sink = new RecordingSink(Integer.MAX_VALUE);
+        final CopyBinaryParser parser = new CopyBinaryParser(sink);
+        for (int offset = 0; offset < copy.length; offset += 7) {
+            parser.write(copy, offset, Math.min(7, copy.length - offset));
+        }
+
+        assertTrue(parser.isFinished());
+        assertEquals(expected(dpids), sink.readings);
+    }
+
+    @Test
+    public void waitsForTrailer() throws IOException {
+        final RecordingSink sink = new RecordingSink(Integer.MAX_VALUE);
+        final CopyBinaryParser parser = new CopyBinaryParser(sink);
+        parser.write(copy(false, "a", "b"));
+
+        assertFalse(parser.isFinished());
+        assertEquals(expected("a", "b"), sink.readings);
+    }
+
+    @Test
+    public void stopsWhenSinkStops() throws IOException {
+        final RecordingSink sink = new RecordingSink(2);
+        final CopyBinaryParser parser = new CopyBinaryParser(sink);
+        try {
+            parser.write(copy(true, "a", "b", "c"));
+            fail("the COPY was not stopped");
+        } catch (IOException e) {
+            assertTrue(parser.isStopped());
+            assertNull(parser.getInterruption());
+        }
+        assertEquals(expected("a", "b"), sink.readings);
+    }
+
+    @Test
+    public void keepsInterruptionOfSink() throws IOException {
+        final CopyBinaryParser parser = new CopyBinaryParser(new RecordingSink(Integer.MAX_VALUE) {
+            @Override
+            public boolean onReading(String dpid, long timestamp, long reading) throws InterruptedException {
+                throw new InterruptedException();
+            }
+        });
+        try {
+            parser.write(copy(true, "a"));
+            fail("the COPY was not stopped");
+        } catch (IOException e) {
+            assertFalse(parser.isStopped());
+            assertNotNull(parser.getInterruption());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherData() throws IOException {
+        final byte[] copy = copy(true, "a");
+        copy[0] = 'X';
+        new CopyBinaryParser(new RecordingSink(Integer.MAX_VALUE)).write(copy);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsNullDpid() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.write(SIGNATURE);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeShort(3);
+        out.writeInt(-1);
+        writeBigint(out, 1);
+        writeBigint(out, 2);
+        new CopyBinaryParser(new RecordingSink(Integer.MAX_VALUE)).write(bytes.toByteArray());
+    }
+
+    /**
+     * Builds a binary COPY of (dpid, rts, reading) rows, the timestamp and reading of the
+     * row i being 1000 + i and -i. The header has a four byte extension area.
+     *
+     * @param trailer whether the COPY ends with its trailer
+     * @param dpids the datapoint id of each row
+     * @return the COPY
+     * @throws IOException never
+     */
+    private static byte[] copy(boolean trailer, String... dpids) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.write(SIGNATURE);
+        out.writeInt(0);
+        out.writeInt(4);
+        out.writeInt(0xCAFEBABE);
+        for (int i = 0; i < dpids.length; i++) {
+            final byte[] dpid = dpids[i].getBytes(UTF_8);
+            out.writeShort(3);
+            out.writeInt(dpid.length);
+            out.write(dpid);
+            writeBigint(out, 1000 + i);
+            writeBigint(out, -i);
+        }
+        if (trailer) {
+            out.writeShort(-1);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeBigint(DataOutputStream out, long value) throws IOException {
+        out.writeInt(8);
+        out.writeLong(value);
+    }
+
+    private static List<String> expected(String... dpids) {
+        final List<String> readings = new ArrayList<String>();
+        for (int i = 0; i < dpids.length; i++) {
+            readings.add(dpids[i] + "@" + (1000 + i) + "=" + -i);
+        }
+        return readings;
+    }
+}
@@ -0,0 +1,53 @@
+-- Migrates the read_data_record table of sensor-readings-schema.sql into the partitioned
+-- layout of sensor-readings-partitioned-schema.sql, in one transaction. Run it with psql,
+-- setting partition_width to the partition_width of the emulator configuration:
+--   psql -v partition_width=2592000 -f migrate-read-data-record-partitions.sql
+-- Requires PostgreSQL 11 or later, for the DEFAULT partition and the index on the partitioned table.
+
+BEGIN;
+
+ALTER TABLE read_data_record RENAME TO read_data_record_unpartitioned;
+ALTER TABLE read_data_record_unpartitioned RENAME CONSTRAINT read_data_record_pkey TO read_data_record_unpartitioned_pkey;
+
+CREATE TABLE read_data_record (
+	dpid text NOT NULL REFERENCES datapoint(dpid),			-- Data point ID
+	ats bigint NOT NULL,						-- Acquisition timestamp
+	rts bigint NOT NULL,						-- Read timestamp
+	reading bigint NOT NULL,					-- Reading value or a pointer to a binary value (in the case of a binary datapoint)
+	PRIMARY KEY(dpid,rts)
+) PARTITION BY RANGE (rts);
+
+-- Time windows are read by rts range in rts order, an index only scan of each partition
+CREATE INDEX read_data_record_rts_idx ON read_data_record (rts, dpid, reading);
+
+-- Creates the partitions covering [from_ts, to_ts), each of width seconds starting at a
+-- multiple of width, named read_data_record_<start>
+CREATE OR REPLACE FUNCTION create_read_data_record_partitions(from_ts bigint, to_ts bigint, width bigint)
+RETURNS void AS $$
+DECLARE
+	start_ts bigint := from_ts - (from_ts % width);
+BEGIN
+	WHILE start_ts < to_ts LOOP
+		EXECUTE format('CREATE TABLE IF NOT EXISTS read_data_record_%s PARTITION OF read_data_record FOR VALUES FROM (%s) TO (%s)',
+			start_ts, start_ts, start_ts + width);
+		start_ts := start_ts + width;
+	END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Partitions covering the migrated readings and a year ahead of the newest one
+SELECT create_read_data_record_partitions(MIN(rts), MAX(rts) + 366 * 86400, :partition_width)
+FROM read_data_record_unpartitioned;
+
+-- Catches readings outside every partition, so that inserts never fail. A partition cannot
+-- be created over rows held by the default partition, so create partitions ahead of time.
+CREATE TABLE read_data_record_default PARTITION OF read_data_record DEFAULT;
+
+INSERT INTO read_data_record (dpid, ats, rts, reading)
+SELECT dpid, ats, rts, reading FROM read_data_record_unpartitioned;
+
+DROP TABLE read_data_record_unpartitioned;
+
+COMMIT;
+
+ANALYZE read_data_record;
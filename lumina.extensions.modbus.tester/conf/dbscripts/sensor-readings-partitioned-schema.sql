@@ -0,0 +1,66 @@
+-- Sensor readings schema with read_data_record partitioned by ranges of rts, so that a
+-- time window is read from a single partition whatever the size of the history.
+-- Requires PostgreSQL 11 or later, for the DEFAULT partition and the index on the partitioned table.
+
+DROP TABLE read_data_record;
+DROP TABLE datapoint;
+DROP TABLE binary_data_record;
+
+CREATE TABLE datapoint (
+    dpid text,
+    uri text NOT NULL,
+	descr text NOT NULL,
+    PRIMARY KEY(dpid)
+);
+
+
+CREATE TABLE read_data_record (
+	dpid text NOT NULL REFERENCES datapoint(dpid),			-- Data point ID
+	ats bigint NOT NULL,						-- Acquisition timestamp
+	rts bigint NOT NULL,						-- Read timestamp
+	reading bigint NOT NULL,					-- Reading value or a pointer to a binary value (in the case of a binary datapoint)
+	PRIMARY KEY(dpid,rts)
+) PARTITION BY RANGE (rts);
+
+-- Time windows are read by rts range in rts order, an index only scan of each partition
+CREATE INDEX read_data_record_rts_idx ON read_data_record (rts, dpid, reading);
+
+-- Creates the partitions covering [from_ts, to_ts), each of width seconds starting at a
+-- multiple of width, named read_data_record_<start>
+CREATE OR REPLACE FUNCTION create_read_data_record_partitions(from_ts bigint, to_ts bigint, width bigint)
+RETURNS void AS $$
+DECLARE
+	start_ts bigint := from_ts - (from_ts % width);
+BEGIN
+	WHILE start_ts < to_ts LOOP
+		EXECUTE format('CREATE TABLE IF NOT EXISTS read_data_record_%s PARTITION OF read_data_record FOR VALUES FROM (%s) TO (%s)',
+			start_ts, start_ts, start_ts + width);
+		start_ts := start_ts + width;
+	END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Partitions of 30 days, matching partition_width=2592000 in the emulator configuration,
+-- from 2010 to 2030. Create more partitions as history accumulates.
+SELECT create_read_data_record_partitions(1262304000, 1893456000, 2592000);
+
+-- Catches readings outside every partition, so that inserts never fail. A partition cannot
+-- be created over rows held by the default partition, so create partitions ahead of time.
+CREATE TABLE read_data_record_default PARTITION OF read_data_record DEFAULT;
+
+CREATE TABLE binary_data_record (
+	bid bigint, 											-- BLOB ID
+	data bytea,
+    PRIMARY KEY(bid)	                       				-- BINARY
+);
+
+CREATE TABLE device (
+	devid bigint,
+	device_type  text,
+	model text,
+	description text,
+	PRIMARY KEY(devid)
+);
+
+CREATE TABLE datapoint_metadata(
+);
\ No newline at end of file
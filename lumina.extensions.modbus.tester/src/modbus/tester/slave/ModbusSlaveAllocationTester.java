@@ -0,0 +1,84 @@
+package modbus.tester.slave;
+
+import java.lang.management.ManagementFactory;
+
+import modbus.slave.ModbusDataType;
+import modbus.slave.ModbusSlaveLib;
+import modbus.slave.RegisterOrder;
+import modbus.slave.SlaveTransport;
+import modbus.slave.exception.InvalidSlaveException;
+
+/**
+ * The Class ModbusSlaveAllocationTester, which counts the bytes allocated by the primitive
+ * register setters. With sequence locked process images they must not allocate once
+ * warmed up; with a BasicProcessImage every register is boxed into its map, so those
+ * bytes are only reported. Exits with status 1 if a sequence locked write allocated.
+ */
+public final class ModbusSlaveAllocationTester {
+
+    private static final int SLAVE_ID = 1;
+    private static final int WRITES = 1000000;
+    private static final int ROUNDS = 3;
+
+    private static final int LONG_REG = 0;
+    private static final int DOUBLE_REG = 4;
+    private static final int FLOAT_REG = 8;
+    private static final int INT_REG = 10;
+
+    /**
+     * Instantiates a new modbus slave allocation tester.
+     */
+    private ModbusSlaveAllocationTester() {
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args the arguments
+     */
+    public static void main(String[] args) {
+        try {
+            final long seqLockBytes = measure(true);
+            measure(false);
+            if (seqLockBytes != 0) {
+                System.err.println("Sequence locked writes allocated " + seqLockBytes + " bytes");
+                System.exit(1);
+            }
+        } catch (InvalidSlaveException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes every primitive data type in a loop, a few rounds to warm up, and reports the
+     * bytes the writing thread allocated in each round.
+     *
+     * @param seqLockImages whether the slave uses a sequence locked process image
+     * @return the bytes allocated in the last round
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    private static long measure(boolean seqLockImages) throws InvalidSlaveException {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final ModbusSlaveLib slave = new ModbusSlaveLib(0, SlaveTransport.NIO, 1, seqLockImages);
+        slave.setRegisterOrder(SLAVE_ID, FLOAT_REG, RegisterOrder.WORD_SWAPPED);
+        slave.setRegisterOrder(SLAVE_ID, INT_REG, RegisterOrder.LITTLE_ENDIAN);
+
+        long allocated = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            final long before = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < WRITES; i++) {
+                slave.setInputRegister(SLAVE_ID, LONG_REG, i * 1234567891L, ModbusDataType.LONG);
+                slave.setInputRegister(SLAVE_ID, DOUBLE_REG, i * 0.5, ModbusDataType.DOUBLE);
+                slave.setInputRegister(SLAVE_ID, FLOAT_REG, (float) i, ModbusDataType.FLOAT);
+                slave.setInputRegister(SLAVE_ID, INT_REG, i, ModbusDataType.INT);
+            }
+            allocated = threads.getThreadAllocatedBytes(threadId) - before;
+            System.out.println((seqLockImages ? "SeqLockProcessImage" : "BasicProcessImage") + " round "
+                    + round + ": " + allocated + " bytes allocated by " + 4 * WRITES + " writes");
+        }
+        return allocated;
+    }
+}
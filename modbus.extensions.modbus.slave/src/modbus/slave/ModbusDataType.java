@@ -11,42 +11,49 @@ public enum ModbusDataType {
      * The short data type corresponds to modbus 2 byte int signed. It requires 1 modbus
      * registers to store a value.
      */
-    SHORT(DataType.TWO_BYTE_INT_SIGNED),
+    SHORT(DataType.TWO_BYTE_INT_SIGNED, 1),
 
     /**
      * The int data type corresponds to modbus 4 byte int signed. It requires 2 modbus
      * registers to store a value.
      */
-    INT(DataType.FOUR_BYTE_INT_SIGNED),
+    INT(DataType.FOUR_BYTE_INT_SIGNED, 2),
 
     /**
      * The float data type corresponds to modbus 4 byte float signed. It requires 2 modbus
      * registers to store a value.
      */
-    FLOAT(DataType.FOUR_BYTE_FLOAT),
+    FLOAT(DataType.FOUR_BYTE_FLOAT, 2),
 
     /**
      * The long data type corresponds to modbus 8 byte int signed. It requires 4 modbus
      * registers to store a value.
      */
-    LONG(DataType.EIGHT_BYTE_INT_SIGNED),
+    LONG(DataType.EIGHT_BYTE_INT_SIGNED, 4),
 
 
     /**
      * The double data type corresponds to modbus 8 byte float signed.It requires 4 modbus
      * registers to store a value.
      */
-    DOUBLE(DataType.EIGHT_BYTE_FLOAT);
+    DOUBLE(DataType.EIGHT_BYTE_FLOAT, 4);
 
 
     private final int dataType;
 
-    ModbusDataType(int dataType) {
+    private final int registers;
+
+    ModbusDataType(int dataType, int registers) {
         this.dataType = dataType;
+        this.registers = registers;
     }
 
     public int getType() {
         return dataType;
     }
 
+    public int getRegisterCount() {
+        return registers;
+    }
+
 }
@@ -0,0 +1,241 @@
+package modbus.slave;
+
+import java.nio.ByteBuffer;
+
+import com.serotonin.modbus4j.ProcessImage;
+import com.serotonin.modbus4j.code.RegisterRange;
+import com.serotonin.modbus4j.exception.IllegalDataAddressException;
+
+/**
+ * The Class ModbusRequestHandler, which answers the request PDUs of a modbus tcp frame
+ * against the process images of the slaves. Requests and responses are read and written in
+ * byte buffers, without allocating per request. A BasicProcessImage is locked for the
+ * whole request, so a master reading several registers never sees a batch written in
+ * between. A {@link SeqLockProcessImage} is not locked, its registers are read at once
+ * without blocking the writer.
+ */
+final class ModbusRequestHandler {
+
+    /** The largest PDU of a modbus frame - bytes. */
+    static final int MAX_PDU = 253;
+
+    /** The function reading coils. */
+    private static final int READ_COILS = 1;
+    /** The function reading discrete inputs. */
+    private static final int READ_DISCRETE_INPUTS = 2;
+    /** The function reading holding registers. */
+    private static final int READ_HOLDING_REGISTERS = 3;
+    /** The function reading input registers. */
+    private static final int READ_INPUT_REGISTERS = 4;
+    /** The function writing a coil. */
+    private static final int WRITE_COIL = 5;
+    /** The function writing a holding register. */
+    private static final int WRITE_REGISTER = 6;
+    /** The function writing several coils. */
+    private static final int WRITE_COILS = 15;
+    /** The function writing several holding registers. */
+    private static final int WRITE_REGISTERS = 16;
+
+    /** The exception of a function the slave does not support. */
+    private static final int ILLEGAL_FUNCTION = 1;
+    /** The exception of an address the slave does not have. */
+    private static final int ILLEGAL_DATA_ADDRESS = 2;
+    /** The exception of a malformed request. */
+    private static final int ILLEGAL_DATA_VALUE = 3;
+    /** The exception of a unit id without a slave. */
+    private static final int GATEWAY_TARGET_FAILED = 0x0B;
+
+    /** The largest number of bits read at once. */
+    private static final int MAX_READ_BITS = 2000;
+    /** The largest number of registers read at once. */
+    private static final int MAX_READ_REGISTERS = 125;
+    /** The largest number of bits written at once. */
+    private static final int MAX_WRITE_BITS = 1968;
+    /** The largest number of registers written at once. */
+    private static final int MAX_WRITE_REGISTERS = 123;
+
+    /** The slave library holding the process images. */
+    private final ModbusSlaveLib slaveLib;
+
+    ModbusRequestHandler(ModbusSlaveLib slaveLib) {
+        this.slaveLib = slaveLib;
+    }
+
+    /**
+     * Answers a request PDU, writing the response PDU at the position of the response
+     * buffer, which must have room for {@link #MAX_PDU} bytes.
+     *
+     * @param unitId the unit id of the frame
+     * @param request the buffer holding the request
+     * @param offset the offset of the request PDU
+     * @param length the length of the request PDU
+     * @param response the buffer the response PDU is written to
+     */
+    void handle(int unitId, ByteBuffer request, int offset, int length, ByteBuffer response) {
+        final int function = request.get(offset) & 0xFF;
+        final ProcessImage processImage = slaveLib.findProcessImage(unitId);
+        if (processImage == null) {
+            writeException(response, function, GATEWAY_TARGET_FAILED);
+            return;
+        }
+
+        final int start = response.position();
+        int exception;
+        try {
+            if (processImage instanceof SeqLockProcessImage) {
+                exception = answer(processImage, function, request, offset, length, response);
+            } else {
+                synchronized (processImage) {
+                    exception = answer(processImage, function, request, offset, length, response);
+                }
+            }
+        } catch (IllegalDataAddressException e) {
+            exception = ILLEGAL_DATA_ADDRESS;
+        }
+        if (exception != 0) {
+            response.position(start);
+            writeException(response, function, exception);
+        }
+    }
+
+    /**
+     * Answers a request of a slave.
+     *
+     * @return the exception code, 0 if the request was answered
+     * @throws IllegalDataAddressException an address the slave does not have
+     */
+    private int answer(ProcessImage processImage, int function, ByteBuffer request, int offset,
+                       int length, ByteBuffer response) throws IllegalDataAddressException {
+        switch (function) {
+            case READ_COILS:
+            case READ_DISCRETE_INPUTS: {
+                if (length != 5) {
+                    return ILLEGAL_DATA_VALUE;
+                }
+                final int address = getUnsignedShort(request, offset + 1);
+                final int quantity = getUnsignedShort(request, offset + 3);
+                if (quantity < 1 || quantity > MAX_READ_BITS) {
+                    return ILLEGAL_DATA_VALUE;
+                }
+                response.put((byte) function);
+                response.put((byte) ((quantity + 7) / 8));
+                int bits = 0;
+                for (int i = 0; i < quantity; i++) {
+                    final boolean bit = function == READ_COILS
+                            ? processImage.getCoil(address + i)
+                            : processImage.getInput(address + i);
+                    if (bit) {
+                        bits |= 1 << (i & 7);
+                    }
+                    if ((i & 7) == 7 || i == quantity - 1) {
+                        response.put((byte) bits);
+                        bits = 0;
+                    }
+                }
+                return 0;
+            }
+            case READ_HOLDING_REGISTERS:
+            case READ_INPUT_REGISTERS: {
+                if (length != 5) {
+                    return ILLEGAL_DATA_VALUE;
+                }
+                final int address = getUnsignedShort(request, offset + 1);
+                final int quantity = getUnsignedShort(request, offset + 3);
+                if (quantity < 1 || quantity > MAX_READ_REGISTERS) {
+                    return ILLEGAL_DATA_VALUE;
+                }
+                response.put((byte) function);
+                response.put((byte) (quantity * 2));
+                if (processImage instanceof SeqLockProcessImage) {
+                    if (address + quantity > 1 << 16) {
+                        return ILLEGAL_DATA_ADDRESS;
+                    }
+                    ((SeqLockProcessImage) processImage).readRegisters(function == READ_HOLDING_REGISTERS
+                            ? RegisterRange.HOLDING_REGISTER
+                            : RegisterRange.INPUT_REGISTER, address, quantity, response);
+                    return 0;
+                }
+                for (int i = 0; i < quantity; i++) {
+                    response.putShort(function == READ_HOLDING_REGISTERS
+                            ? processImage.getHoldingRegister(address + i)
+                            : processImage.getInputRegister(address + i));
+                }
+                return 0;
+            }
+            case WRITE_COIL: {
+                if (length != 5) {
+                    return ILLEGAL_DATA_VALUE;
+                }
+                final int address = getUnsignedShort(request, offset + 1);
+                final int value = getUnsignedShort(request, offset + 3);
+                if (value != 0xFF00 && value != 0) {
+                    return ILLEGAL_DATA_VALUE;
+                }
+                processImage.writeCoil(address, value != 0);
+                echo(request, offset, 5, response);
+                return 0;
+            }
+            case WRITE_REGISTER: {
+                if (length != 5) {
+                    return ILLEGAL_DATA_VALUE;
+                }
+                processImage.writeHoldingRegister(getUnsignedShort(request, offset + 1),
+                        request.getShort(offset + 3));
+                echo(request, offset, 5, response);
+                return 0;
+            }
+            case WRITE_COILS: {
+                if (length < 6) {
+                    return ILLEGAL_DATA_VALUE;
+                }
+                final int address = getUnsignedShort(request, offset + 1);
+                final int quantity = getUnsignedShort(request, offset + 3);
+                final int byteCount = request.get(offset + 5) & 0xFF;
+                if (quantity < 1 || quantity > MAX_WRITE_BITS || byteCount != (quantity + 7) / 8
+                        || length != 6 + byteCount) {
+                    return ILLEGAL_DATA_VALUE;
+                }
+                for (int i = 0; i < quantity; i++) {
+                    final int bits = request.get(offset + 6 + i / 8);
+                    processImage.writeCoil(address + i, (bits & 1 << (i & 7)) != 0);
+                }
+                echo(request, offset, 5, response);
+                return 0;
+            }
+            case WRITE_REGISTERS: {
+                if (length < 6) {
+                    return ILLEGAL_DATA_VALUE;
+                }
+                final int address = getUnsignedShort(request, offset + 1);
+                final int quantity = getUnsignedShort(request, offset + 3);
+                final int byteCount = request.get(offset + 5) & 0xFF;
+                if (quantity < 1 || quantity > MAX_WRITE_REGISTERS || byteCount != quantity * 2
+                        || length != 6 + byteCount) {
+                    return ILLEGAL_DATA_VALUE;
+                }
+                for (int i = 0; i < quantity; i++) {
+                    processImage.writeHoldingRegister(address + i, request.getShort(offset + 6 + i * 2));
+                }
+                echo(request, offset, 5, response);
+                return 0;
+            }
+            default:
+                return ILLEGAL_FUNCTION;
+        }
+    }
+
+    private static int getUnsignedShort(ByteBuffer buffer, int index) {
+        return buffer.getShort(index) & 0xFFFF;
+    }
+
+    private static void echo(ByteBuffer request, int offset, int length, ByteBuffer response) {
+        for (int i = 0; i < length; i++) {
+            response.put(request.get(offset + i));
+        }
+    }
+
+    private static void writeException(ByteBuffer response, int function, int exception) {
+        response.put((byte) (function | 0x80));
+        response.put((byte) exception);
+    }
+}
@@ -1,6 +1,8 @@
 package modbus.slave;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import modbus.slave.exception.InvalidSlaveException;
 
@@ -16,18 +18,62 @@ import com.serotonin.modbus4j.ip.tcp.TcpSlave;
  */
 public class ModbusSlaveLib {
 
-    /** The listener. */
+    /** The listener, null unless the modbus4j transport is used. */
     private final ModbusSlaveSet listener;
 
-    /** The slave values. */
-    private final HashMap<Integer, ProcessImage> slaveValues;
+    /** The server of the connections, null if the modbus4j transport is used. */
+    private final SlaveServer server;
+
+    /** The highest slave id, the unit ids above are reserved. */
+    public static final int MAX_SLAVE_ID = 247;
+
+    /** The slave values by slave id, read by the connection threads of the transports. */
+    private final AtomicReferenceArray<ProcessImage> slaveValues;
+
+    /** The register order of each address of each slave, null where big endian. */
+    private final AtomicReferenceArray<RegisterOrder[]> registerOrders;
+
+    /** Whether the slaves use sequence locked process images. */
+    private final boolean seqLockImages;
 
     /** The wait time. */
     private final int waitTime = 200;
 
     public ModbusSlaveLib(int port) {
-        this.slaveValues = new HashMap<Integer, ProcessImage>();
-        this.listener = new TcpSlave(port, false);
+        this(port, SlaveTransport.MODBUS4J, 0);
+    }
+
+    public ModbusSlaveLib(int port, SlaveTransport transport, int ioThreads) {
+        this(port, transport, ioThreads, false);
+    }
+
+    /**
+     * Instantiates a new modbus slave lib.
+     *
+     * @param port the listening port
+     * @param transport how the connections are served
+     * @param ioThreads the number of event loops of the NIO transport, 0 uses one per
+     *            available processor
+     * @param seqLockImages whether the slaves use a {@link SeqLockProcessImage}, whose
+     *            multi-register values are never read half updated, instead of a
+     *            BasicProcessImage
+     */
+    public ModbusSlaveLib(int port, SlaveTransport transport, int ioThreads, boolean seqLockImages) {
+        this.slaveValues = new AtomicReferenceArray<ProcessImage>(MAX_SLAVE_ID + 1);
+        this.registerOrders = new AtomicReferenceArray<RegisterOrder[]>(MAX_SLAVE_ID + 1);
+        this.seqLockImages = seqLockImages;
+        if (transport == SlaveTransport.NIO) {
+            this.listener = null;
+            this.server = new NioModbusServer(port,
+                    ioThreads > 0 ? ioThreads : Runtime.getRuntime().availableProcessors(),
+                    new ModbusRequestHandler(this));
+        } else if (transport == SlaveTransport.VIRTUAL_THREADS) {
+            this.listener = null;
+            this.server = new ThreadPerConnectionServer(port, new ModbusRequestHandler(this));
+        } else {
+            this.listener = new TcpSlave(port, false);
+            this.server = null;
+        }
     }
 
     /**
@@ -37,19 +83,27 @@ public class ModbusSlaveLib {
      * @throws InvalidPropertiesException
      */
     public void runModbusTcpSlave() throws InterruptedException {
-        new Thread(new Runnable() {
-            public void run() {
-                try {
-                    listener.start();
-                } catch (ModbusInitException e) {
-                    e.printStackTrace();
-                }
+        if (server != null) {
+            try {
+                server.start();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-        }).start();
+        } else {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        listener.start();
+                    } catch (ModbusInitException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }).start();
+        }
 
         while (true) {
-            synchronized (listener) {
-                listener.wait(waitTime);
+            synchronized (this) {
+                wait(waitTime);
             }
         }
     }
@@ -103,6 +157,66 @@ public class ModbusSlaveLib {
         setRegister(slaveId, offset, value, RegisterRange.HOLDING_REGISTER, mdType);
     }
 
+    /**
+     * Sets the holding register - read write register, long. The value is encoded
+     * in the register order of the address, without allocating when the slave uses a
+     * {@link SeqLockProcessImage}; a BasicProcessImage boxes every register it stores.
+     *
+     * @param slaveId the slave id
+     * @param offset the register address
+     * @param value the value to write
+     * @param mdType the modbus data type format
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setHoldingRegister(int slaveId, int offset, long value, ModbusDataType mdType) throws InvalidSlaveException {
+        setRegisterBits(slaveId, offset, RegisterEncoder.toBits(value, mdType), RegisterRange.HOLDING_REGISTER, mdType);
+    }
+
+    /**
+     * Sets the holding register - read write register, int. The value is encoded
+     * in the register order of the address, without allocating when the slave uses a
+     * {@link SeqLockProcessImage}; a BasicProcessImage boxes every register it stores.
+     *
+     * @param slaveId the slave id
+     * @param offset the register address
+     * @param value the value to write
+     * @param mdType the modbus data type format
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setHoldingRegister(int slaveId, int offset, int value, ModbusDataType mdType) throws InvalidSlaveException {
+        setRegisterBits(slaveId, offset, RegisterEncoder.toBits((long) value, mdType), RegisterRange.HOLDING_REGISTER, mdType);
+    }
+
+    /**
+     * Sets the holding register - read write register, float. The value is encoded
+     * in the register order of the address, without allocating when the slave uses a
+     * {@link SeqLockProcessImage}; a BasicProcessImage boxes every register it stores.
+     *
+     * @param slaveId the slave id
+     * @param offset the register address
+     * @param value the value to write
+     * @param mdType the modbus data type format
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setHoldingRegister(int slaveId, int offset, float value, ModbusDataType mdType) throws InvalidSlaveException {
+        setRegisterBits(slaveId, offset, RegisterEncoder.toBits((double) value, mdType), RegisterRange.HOLDING_REGISTER, mdType);
+    }
+
+    /**
+     * Sets the holding register - read write register, double. The value is encoded
+     * in the register order of the address, without allocating when the slave uses a
+     * {@link SeqLockProcessImage}; a BasicProcessImage boxes every register it stores.
+     *
+     * @param slaveId the slave id
+     * @param offset the register address
+     * @param value the value to write
+     * @param mdType the modbus data type format
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setHoldingRegister(int slaveId, int offset, double value, ModbusDataType mdType) throws InvalidSlaveException {
+        setRegisterBits(slaveId, offset, RegisterEncoder.toBits(value, mdType), RegisterRange.HOLDING_REGISTER, mdType);
+    }
+
     /**
      * Sets the input register - read only register, short.
      * 
@@ -128,6 +242,405 @@ public class ModbusSlaveLib {
         setRegister(slaveId, offset, value, RegisterRange.INPUT_REGISTER, mdType);
     }
 
+    /**
+     * Sets the input register - read only register, long. The value is encoded
+     * in the register order of the address, without allocating when the slave uses a
+     * {@link SeqLockProcessImage}; a BasicProcessImage boxes every register it stores.
+     *
+     * @param slaveId the slave id
+     * @param offset the register address
+     * @param value the value to write
+     * @param mdType the modbus data type format
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setInputRegister(int slaveId, int offset, long value, ModbusDataType mdType) throws InvalidSlaveException {
+        setRegisterBits(slaveId, offset, RegisterEncoder.toBits(value, mdType), RegisterRange.INPUT_REGISTER, mdType);
+    }
+
+    /**
+     * Sets the input register - read only register, int. The value is encoded
+     * in the register order of the address, without allocating when the slave uses a
+     * {@link SeqLockProcessImage}; a BasicProcessImage boxes every register it stores.
+     *
+     * @param slaveId the slave id
+     * @param offset the register address
+     * @param value the value to write
+     * @param mdType the modbus data type format
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setInputRegister(int slaveId, int offset, int value, ModbusDataType mdType) throws InvalidSlaveException {
+        setRegisterBits(slaveId, offset, RegisterEncoder.toBits((long) value, mdType), RegisterRange.INPUT_REGISTER, mdType);
+    }
+
+    /**
+     * Sets the input register - read only register, float. The value is encoded
+     * in the register order of the address, without allocating when the slave uses a
+     * {@link SeqLockProcessImage}; a BasicProcessImage boxes every register it stores.
+     *
+     * @param slaveId the slave id
+     * @param offset the register address
+     * @param value the value to write
+     * @param mdType the modbus data type format
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setInputRegister(int slaveId, int offset, float value, ModbusDataType mdType) throws InvalidSlaveException {
+        setRegisterBits(slaveId, offset, RegisterEncoder.toBits((double) value, mdType), RegisterRange.INPUT_REGISTER, mdType);
+    }
+
+    /**
+     * Sets the input register - read only register, double. The value is encoded
+     * in the register order of the address, without allocating when the slave uses a
+     * {@link SeqLockProcessImage}; a BasicProcessImage boxes every register it stores.
+     *
+     * @param slaveId the slave id
+     * @param offset the register address
+     * @param value the value to write
+     * @param mdType the modbus data type format
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setInputRegister(int slaveId, int offset, double value, ModbusDataType mdType) throws InvalidSlaveException {
+        setRegisterBits(slaveId, offset, RegisterEncoder.toBits(value, mdType), RegisterRange.INPUT_REGISTER, mdType);
+    }
+
+    /**
+     * Sets the order of the bytes and words of the values written to a register of a slave,
+     * big endian by default. Orders should be set before the values are written.
+     *
+     * @param slaveId the slave id
+     * @param offset the register address
+     * @param order the register order
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setRegisterOrder(int slaveId, int offset, RegisterOrder order) throws InvalidSlaveException {
+        if (slaveId < 1 || slaveId > MAX_SLAVE_ID) {
+            throw new InvalidSlaveException();
+        }
+        checkBlock(offset, 1);
+        synchronized (registerOrders) {
+            RegisterOrder[] orders = registerOrders.get(slaveId);
+            if (orders == null) {
+                orders = new RegisterOrder[1 << 16];
+                registerOrders.set(slaveId, orders);
+            }
+            orders[offset] = order;
+        }
+    }
+
+    /**
+     * Sets several input registers of a slave at once, any numeric type. The process image
+     * is locked once for the whole batch. Under the NIO and virtual thread transports, which
+     * lock a BasicProcessImage for each request, a master never reads part of the batch; a
+     * {@link SeqLockProcessImage} publishes each value whole. The modbus4j TcpSlave reads one
+     * register at a time without the lock, so its masters may read a batch half written.
+     *
+     * @param slaveId the slave id
+     * @param offsets the register address of each value
+     * @param values the values to write
+     * @param count the number of values
+     * @param mdType the modbus data type format
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setInputRegisters(int slaveId, int[] offsets, long[] values, int count, ModbusDataType mdType) throws InvalidSlaveException {
+        setRegisters(slaveId, offsets, values, count, RegisterRange.INPUT_REGISTER, mdType);
+    }
+
+    /**
+     * Sets several holding registers of a slave at once, any numeric type. The process image
+     * is locked once for the whole batch. Under the NIO and virtual thread transports, which
+     * lock a BasicProcessImage for each request, a master never reads part of the batch; a
+     * {@link SeqLockProcessImage} publishes each value whole. The modbus4j TcpSlave reads one
+     * register at a time without the lock, so its masters may read a batch half written.
+     *
+     * @param slaveId the slave id
+     * @param offsets the register address of each value
+     * @param values the values to write
+     * @param count the number of values
+     * @param mdType the modbus data type format
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setHoldingRegisters(int slaveId, int[] offsets, long[] values, int count, ModbusDataType mdType) throws InvalidSlaveException {
+        setRegisters(slaveId, offsets, values, count, RegisterRange.HOLDING_REGISTER, mdType);
+    }
+
+    /**
+     * Sets a block of consecutive coils under one lock.
+     *
+     * @param slaveId the slave id
+     * @param offset the address of the first coil
+     * @param values the values to write
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setCoils(int slaveId, int offset, boolean[] values) throws InvalidSlaveException {
+        setBitBlock(slaveId, offset, values, null, values.length, RegisterRange.COIL_STATUS);
+    }
+
+    /**
+     * Sets a block of consecutive coils under one lock.
+     *
+     * @param slaveId the slave id
+     * @param offset the address of the first coil
+     * @param values the values to write, bit i is written to the address offset + i
+     * @param count the number of coils
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setCoils(int slaveId, int offset, BitSet values, int count) throws InvalidSlaveException {
+        setBitBlock(slaveId, offset, null, values, count, RegisterRange.COIL_STATUS);
+    }
+
+    /**
+     * Sets a block of consecutive discrete inputs under one lock.
+     *
+     * @param slaveId the slave id
+     * @param offset the address of the first discrete input
+     * @param values the values to write
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setDiscreteInputs(int slaveId, int offset, boolean[] values) throws InvalidSlaveException {
+        setBitBlock(slaveId, offset, values, null, values.length, RegisterRange.INPUT_STATUS);
+    }
+
+    /**
+     * Sets a block of consecutive discrete inputs under one lock.
+     *
+     * @param slaveId the slave id
+     * @param offset the address of the first discrete input
+     * @param values the values to write, bit i is written to the address offset + i
+     * @param count the number of discrete inputs
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setDiscreteInputs(int slaveId, int offset, BitSet values, int count) throws InvalidSlaveException {
+        setBitBlock(slaveId, offset, null, values, count, RegisterRange.INPUT_STATUS);
+    }
+
+    /**
+     * Sets a block of consecutive holding registers under one lock, short.
+     *
+     * @param slaveId the slave id
+     * @param offset the address of the first register
+     * @param values the values to write
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setHoldingRegisters(int slaveId, int offset, short[] values) throws InvalidSlaveException {
+        setRegisterBlock(slaveId, offset, values, RegisterRange.HOLDING_REGISTER);
+    }
+
+    /**
+     * Sets a block of consecutive holding register values under one lock, each taking the
+     * registers of its data type.
+     *
+     * @param slaveId the slave id
+     * @param offset the address of the first register
+     * @param values the values to write
+     * @param mdType the modbus data type format of every value
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setHoldingRegisters(int slaveId, int offset, long[] values, ModbusDataType mdType) throws InvalidSlaveException {
+        setRegisterBlock(slaveId, offset, values, null, RegisterRange.HOLDING_REGISTER, mdType);
+    }
+
+    /**
+     * Sets a block of consecutive holding register values under one lock, each taking the
+     * registers of its data type.
+     *
+     * @param slaveId the slave id
+     * @param offset the address of the first register
+     * @param values the values to write
+     * @param mdType the modbus data type format of every value
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setHoldingRegisters(int slaveId, int offset, double[] values, ModbusDataType mdType) throws InvalidSlaveException {
+        setRegisterBlock(slaveId, offset, null, values, RegisterRange.HOLDING_REGISTER, mdType);
+    }
+
+    /**
+     * Sets a block of consecutive input registers under one lock, short.
+     *
+     * @param slaveId the slave id
+     * @param offset the address of the first register
+     * @param values the values to write
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setInputRegisters(int slaveId, int offset, short[] values) throws InvalidSlaveException {
+        setRegisterBlock(slaveId, offset, values, RegisterRange.INPUT_REGISTER);
+    }
+
+    /**
+     * Sets a block of consecutive input register values under one lock, each taking the
+     * registers of its data type.
+     *
+     * @param slaveId the slave id
+     * @param offset the address of the first register
+     * @param values the values to write
+     * @param mdType the modbus data type format of every value
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setInputRegisters(int slaveId, int offset, long[] values, ModbusDataType mdType) throws InvalidSlaveException {
+        setRegisterBlock(slaveId, offset, values, null, RegisterRange.INPUT_REGISTER, mdType);
+    }
+
+    /**
+     * Sets a block of consecutive input register values under one lock, each taking the
+     * registers of its data type.
+     *
+     * @param slaveId the slave id
+     * @param offset the address of the first register
+     * @param values the values to write
+     * @param mdType the modbus data type format of every value
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    public void setInputRegisters(int slaveId, int offset, double[] values, ModbusDataType mdType) throws InvalidSlaveException {
+        setRegisterBlock(slaveId, offset, null, values, RegisterRange.INPUT_REGISTER, mdType);
+    }
+
+    /**
+     * Sets a block of coils or discrete inputs, given as an array or as a bit set, under one
+     * lock of the process image.
+     *
+     * @param slaveId the slave id
+     * @param offset the address of the first bit
+     * @param array the values, null if given as a bit set
+     * @param bitSet the values, null if given as an array
+     * @param count the number of bits
+     * @param range the bit type
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    private void setBitBlock(int slaveId, int offset, boolean[] array, BitSet bitSet, int count, int range) throws InvalidSlaveException {
+        checkBlock(offset, count);
+        final ProcessImage processImage = getProcessImage(slaveId);
+        if (processImage instanceof SeqLockProcessImage) {
+            if (array != null) {
+                ((SeqLockProcessImage) processImage).setBitBlock(range, offset, array);
+            } else {
+                ((SeqLockProcessImage) processImage).setBitBlock(range, offset, bitSet, count);
+            }
+            return;
+        }
+        synchronized (processImage) {
+            for (int i = 0; i < count; i++) {
+                final boolean value = array != null ? array[i] : bitSet.get(i);
+                if (range == RegisterRange.COIL_STATUS) {
+                    processImage.setCoil(offset + i, value);
+                } else {
+                    processImage.setInput(offset + i, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets a block of consecutive registers under one lock of the process image.
+     *
+     * @param slaveId the slave id
+     * @param offset the address of the first register
+     * @param values the values
+     * @param range the register type
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    private void setRegisterBlock(int slaveId, int offset, short[] values, int range) throws InvalidSlaveException {
+        checkBlock(offset, values.length);
+        final ProcessImage processImage = getProcessImage(slaveId);
+        if (processImage instanceof SeqLockProcessImage) {
+            ((SeqLockProcessImage) processImage).setRegisters(range, offset, values, values.length);
+            return;
+        }
+        synchronized (processImage) {
+            for (int i = 0; i < values.length; i++) {
+                setWord(processImage, range, offset + i, values[i]);
+            }
+        }
+    }
+
+    /**
+     * Sets a block of consecutive values, integral or floating point, under one lock of the
+     * process image. The values are encoded into register words directly, without going
+     * through the modbus4j data type conversion, in the register order set at the address
+     * of each value.
+     *
+     * @param slaveId the slave id
+     * @param offset the address of the first register
+     * @param longs the values, null if floating point
+     * @param doubles the values, null if integral
+     * @param range the register type
+     * @param mdType the modbus data type format of every value
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    private void setRegisterBlock(int slaveId, int offset, long[] longs, double[] doubles, int range, ModbusDataType mdType) throws InvalidSlaveException {
+        final int count = longs != null ? longs.length : doubles.length;
+        checkBlock(offset, count * mdType.getRegisterCount());
+        final ProcessImage processImage = getProcessImage(slaveId);
+        final RegisterOrder[] orders = registerOrders.get(slaveId);
+        if (processImage instanceof SeqLockProcessImage) {
+            if (longs != null) {
+                ((SeqLockProcessImage) processImage).setRegisterBlock(range, offset, longs, mdType, orders);
+            } else {
+                ((SeqLockProcessImage) processImage).setRegisterBlock(range, offset, doubles, mdType, orders);
+            }
+            return;
+        }
+        final int registers = mdType.getRegisterCount();
+        synchronized (processImage) {
+            for (int i = 0; i < count; i++) {
+                final int address = offset + i * registers;
+                final RegisterOrder order = getRegisterOrder(orders, address);
+                final long bits = longs != null
+                        ? RegisterEncoder.toBits(longs[i], mdType)
+                        : RegisterEncoder.toBits(doubles[i], mdType);
+                for (int j = 0; j < registers; j++) {
+                    setWord(processImage, range, address + j, RegisterEncoder.word(bits, registers, j, order));
+                }
+            }
+        }
+    }
+
+    private static void setWord(ProcessImage processImage, int range, int offset, short value) {
+        if (range == RegisterRange.HOLDING_REGISTER) {
+            processImage.setHoldingRegister(offset, value);
+        } else {
+            processImage.setInputRegister(offset, value);
+        }
+    }
+
+    private static void checkBlock(int offset, int count) {
+        if (offset < 0 || count < 0 || offset + count > 1 << 16) {
+            throw new IllegalArgumentException("Invalid register block: " + offset + ", " + count);
+        }
+    }
+
+    /**
+     * Sets several registers of a slave under one lock of its process image, which only
+     * keeps the batch whole for the transports that take the same lock to read it.
+     *
+     * @param slaveId the slave id
+     * @param offsets the register address of each value
+     * @param values the values
+     * @param count the number of values
+     * @param range the register type
+     * @param mdType the modbus datatype format
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    private void setRegisters(int slaveId, int[] offsets, long[] values, int count, int range, ModbusDataType mdType) throws InvalidSlaveException {
+        final int registers = mdType.getRegisterCount();
+        // checked before anything is written, so that an invalid offset writes nothing
+        for (int i = 0; i < count; i++) {
+            checkBlock(offsets[i], registers);
+        }
+        final ProcessImage processImage = getProcessImage(slaveId);
+        final RegisterOrder[] orders = registerOrders.get(slaveId);
+        if (processImage instanceof SeqLockProcessImage) {
+            ((SeqLockProcessImage) processImage).setRegisters(range, offsets, values, count, mdType, orders);
+            return;
+        }
+        synchronized (processImage) {
+            for (int i = 0; i < count; i++) {
+                final long bits = RegisterEncoder.toBits(values[i], mdType);
+                final RegisterOrder order = getRegisterOrder(orders, offsets[i]);
+                for (int j = 0; j < registers; j++) {
+                    setWord(processImage, range, offsets[i] + j, RegisterEncoder.word(bits, registers, j, order));
+                }
+            }
+        }
+    }
+
     /**
      * Sets the register.
      *
@@ -139,8 +652,39 @@ public class ModbusSlaveLib {
      * @throws InvalidSlaveException the invalid slave exception
      */
     private void setRegister(int slaveId, int offset, Number value, int range, ModbusDataType mdType) throws InvalidSlaveException {
-        ((BasicProcessImage) getProcessImage(slaveId)).setRegister(range, offset, mdType.getType(),
-                value);
+        setRegisterBits(slaveId, offset, RegisterEncoder.toBits(value, mdType), range, mdType);
+    }
+
+    /**
+     * Sets a register given as the bits of its data type, in the register order of the
+     * address. The words are encoded straight into the process image, without the modbus4j
+     * data type conversion. Only a {@link SeqLockProcessImage} stores them without
+     * allocating.
+     *
+     * @param slaveId the slave id
+     * @param offset the register address
+     * @param bits the bits of the value
+     * @param range the register type
+     * @param mdType the modbus datatype format
+     * @throws InvalidSlaveException the invalid slave exception
+     */
+    private void setRegisterBits(int slaveId, int offset, long bits, int range, ModbusDataType mdType) throws InvalidSlaveException {
+        final ProcessImage processImage = getProcessImage(slaveId);
+        final RegisterOrder order = getRegisterOrder(registerOrders.get(slaveId), offset);
+        final int registers = mdType.getRegisterCount();
+        if (processImage instanceof SeqLockProcessImage) {
+            ((SeqLockProcessImage) processImage).setRegister(range, offset, bits, registers, order);
+            return;
+        }
+        synchronized (processImage) {
+            for (int i = 0; i < registers; i++) {
+                setWord(processImage, range, offset + i, RegisterEncoder.word(bits, registers, i, order));
+            }
+        }
+    }
+
+    private static RegisterOrder getRegisterOrder(RegisterOrder[] orders, int offset) {
+        return orders != null && orders[offset] != null ? orders[offset] : RegisterOrder.BIG_ENDIAN;
     }
 
     /**
@@ -151,17 +695,41 @@ public class ModbusSlaveLib {
      * @throws InvalidSlaveException the invalid slave exception
      */
     private ProcessImage getProcessImage(int slaveId) throws InvalidSlaveException {
-        if (slaveId == 0) {
+        if (slaveId < 1 || slaveId > MAX_SLAVE_ID) {
             throw new InvalidSlaveException();
-        } else if (slaveValues.containsKey(slaveId)) {
-            return slaveValues.get(slaveId);
-        } else {
-            final BasicProcessImage processImage = new BasicProcessImage(slaveId);
-            processImage.setAllowInvalidAddress(false);
-            processImage.setInvalidAddressValue(Short.MIN_VALUE);
-            slaveValues.put(slaveId, processImage);
-            listener.addProcessImage(processImage);
+        }
+        final ProcessImage existing = slaveValues.get(slaveId);
+        if (existing != null) {
+            return existing;
+        }
+        synchronized (slaveValues) {
+            if (slaveValues.get(slaveId) != null) {
+                return slaveValues.get(slaveId);
+            }
+            final ProcessImage processImage;
+            if (seqLockImages) {
+                processImage = new SeqLockProcessImage(slaveId);
+            } else {
+                final BasicProcessImage basicImage = new BasicProcessImage(slaveId);
+                basicImage.setAllowInvalidAddress(false);
+                basicImage.setInvalidAddressValue(Short.MIN_VALUE);
+                processImage = basicImage;
+            }
+            slaveValues.set(slaveId, processImage);
+            if (listener != null) {
+                listener.addProcessImage(processImage);
+            }
             return processImage;
         }
     }
+
+    /**
+     * Finds the process image of a slave, without creating it.
+     *
+     * @param slaveId the slave id
+     * @return the process image, null if the slave has no values
+     */
+    ProcessImage findProcessImage(int slaveId) {
+        return slaveId >= 1 && slaveId <= MAX_SLAVE_ID ? slaveValues.get(slaveId) : null;
+    }
 }
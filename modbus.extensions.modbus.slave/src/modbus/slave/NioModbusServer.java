@@ -0,0 +1,257 @@
+package modbus.slave;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The Class NioModbusServer, a non-blocking modbus tcp server. A fixed number of event
+ * loops, each with its own selector, serve every connection, so the number of threads does
+ * not grow with the number of masters. The first loop also accepts the connections, which
+ * are handed to the loops in turn. Frames are parsed in direct byte buffers owned by each
+ * connection, and requests sent before the previous response was read are answered in
+ * order.
+ */
+final class NioModbusServer
+        implements SlaveServer {
+
+    /** The length of the MBAP header - bytes. */
+    private static final int HEADER = 7;
+    /** The largest modbus tcp frame - bytes. */
+    private static final int MAX_FRAME = HEADER + ModbusRequestHandler.MAX_PDU;
+    /** The size of the buffers of a connection, which hold at least one frame - bytes. */
+    private static final int BUFFER_SIZE = 2 * MAX_FRAME;
+
+    /** The listening port. */
+    private final int port;
+    /** The handler answering the requests. */
+    private final ModbusRequestHandler handler;
+    /** The event loops. */
+    private final EventLoop[] loops;
+    /** The loop the next accepted connection is handed to. */
+    private int nextLoop;
+
+    /**
+     * Instantiates a new NIO modbus server.
+     *
+     * @param port the listening port
+     * @param threads the number of event loops
+     * @param handler the handler answering the requests
+     */
+    NioModbusServer(int port, int threads, ModbusRequestHandler handler) {
+        this.port = port;
+        this.handler = handler;
+        this.loops = new EventLoop[Math.max(1, threads)];
+    }
+
+    /**
+     * Binds the listening port and starts the event loops.
+     *
+     * @throws IOException the port could not be bound
+     */
+    @Override
+    public void start() throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i, Selector.open());
+        }
+        server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Accepts the pending connections, handing them to the loops in turn.
+     *
+     * @param server the listening channel
+     */
+    private void accept(ServerSocketChannel server) {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                final EventLoop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                loop.accepted.add(channel);
+                loop.selector.wakeup();
+            }
+        } catch (IOException e) {
+            System.err.println("Modbus connection could not be accepted: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The Class Connection, the frame buffers of a master connection.
+     */
+    private static final class Connection {
+        /** The channel. */
+        private final SocketChannel channel;
+        /** The bytes received and not answered yet, in write mode. */
+        private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        /** The responses not sent yet, in write mode. */
+        private final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * The Class EventLoop, a thread serving its connections with a selector.
+     */
+    private final class EventLoop
+            extends Thread {
+        /** The selector of the loop. */
+        private final Selector selector;
+        /** The connections accepted for the loop and not registered yet. */
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+
+        private EventLoop(int index, Selector selector) {
+            super("Modbus IO " + index);
+            this.selector = selector;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    selector.select();
+                    registerAccepted();
+
+                    final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isAcceptable()) {
+                            accept((ServerSocketChannel) key.channel());
+                            continue;
+                        }
+                        try {
+                            serve(key);
+                        } catch (IOException e) {
+                            close(key);
+                        } catch (CancelledKeyException e) {
+                            close(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println(getName() + " selector failed: " + e.getMessage());
+                }
+            }
+        }
+
+        private void registerAccepted() {
+            SocketChannel channel;
+            while ((channel = accepted.poll()) != null) {
+                try {
+                    channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException closeError) {
+                        // already closed
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads the frames of a connection and sends their responses. While responses wait
+         * to be sent, the connection stops reading, so a master which does not read its
+         * responses cannot make the server buffer without bound.
+         *
+         * @param key the key of the connection
+         * @throws IOException the connection failed
+         */
+        private void serve(SelectionKey key) throws IOException {
+            final Connection connection = (Connection) key.attachment();
+            if (key.isWritable() && !flush(connection)) {
+                return;
+            }
+            if (key.isReadable() && connection.channel.read(connection.in) < 0) {
+                close(key);
+                return;
+            }
+
+            while (answer(connection) && flush(connection)) {
+                // answer the frames received while the responses were sent
+            }
+            key.interestOps(connection.out.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        /**
+         * Answers the complete frames received, while there is room for their responses.
+         *
+         * @param connection the connection
+         * @return true if a frame was answered
+         * @throws IOException a frame is malformed
+         */
+        private boolean answer(Connection connection) throws IOException {
+            final ByteBuffer in = connection.in;
+            final ByteBuffer out = connection.out;
+            in.flip();
+            boolean answered = false;
+            while (in.remaining() >= HEADER && out.remaining() >= MAX_FRAME) {
+                final int frame = in.position();
+                final int length = in.getShort(frame + 4) & 0xFFFF;
+                if (length < 2 || length > ModbusRequestHandler.MAX_PDU + 1) {
+                    throw new IOException("invalid frame length " + length);
+                }
+                if (in.remaining() < HEADER - 1 + length) {
+                    break;
+                }
+
+                final int responseFrame = out.position();
+                out.putInt(in.getInt(frame));
+                out.putShort((short) 0);
+                out.put(in.get(frame + 6));
+                handler.handle(in.get(frame + 6) & 0xFF, in, frame + HEADER, length - 1, out);
+                out.putShort(responseFrame + 4, (short) (out.position() - responseFrame - 6));
+
+                in.position(frame + HEADER - 1 + length);
+                answered = true;
+            }
+            in.compact();
+            return answered;
+        }
+
+        /**
+         * Sends the pending responses.
+         *
+         * @param connection the connection
+         * @return true if every response was sent
+         * @throws IOException the connection failed
+         */
+        private boolean flush(Connection connection) throws IOException {
+            final ByteBuffer out = connection.out;
+            out.flip();
+            connection.channel.write(out);
+            out.compact();
+            return out.position() == 0;
+        }
+
+        private void close(SelectionKey key) {
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package modbus.slave;
+
+/**
+ * The Class RegisterEncoder, which encodes numeric values into modbus register words. A
+ * value is first turned into the bits of its data type, then split into words in the
+ * register order, most significant word and byte first unless the order swaps them.
+ * Nothing is allocated, so values can be encoded once per reading.
+ */
+final class RegisterEncoder {
+
+    private RegisterEncoder() {
+    }
+
+    /**
+     * Gets the bits of an integral value in a data type.
+     *
+     * @param value the value
+     * @param mdType the modbus data type format
+     * @return the bits, in the low bits of the result
+     */
+    static long toBits(long value, ModbusDataType mdType) {
+        switch (mdType) {
+            case FLOAT:
+                return Float.floatToIntBits(value);
+            case DOUBLE:
+                return Double.doubleToLongBits(value);
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Gets the bits of a floating point value in a data type, integral types take the value
+     * rounded towards zero.
+     *
+     * @param value the value
+     * @param mdType the modbus data type format
+     * @return the bits, in the low bits of the result
+     */
+    static long toBits(double value, ModbusDataType mdType) {
+        switch (mdType) {
+            case FLOAT:
+                return Float.floatToIntBits((float) value);
+            case DOUBLE:
+                return Double.doubleToLongBits(value);
+            default:
+                return (long) value;
+        }
+    }
+
+    /**
+     * Gets the bits of a value in a data type.
+     *
+     * @param value the value
+     * @param mdType the modbus data type format
+     * @return the bits, in the low bits of the result
+     */
+    static long toBits(Number value, ModbusDataType mdType) {
+        switch (mdType) {
+            case FLOAT:
+                return Float.floatToIntBits(value.floatValue());
+            case DOUBLE:
+                return Double.doubleToLongBits(value.doubleValue());
+            default:
+                return value.longValue();
+        }
+    }
+
+    /**
+     * Gets a register word of a value.
+     *
+     * @param bits the bits of the value
+     * @param count the number of registers of the value
+     * @param index the register, 0 for the first register of the value
+     * @param order the register order
+     * @return the register word
+     */
+    static short word(long bits, int count, int index, RegisterOrder order) {
+        final int significance = order.isWordSwapped() ? index : count - 1 - index;
+        final short word = (short) (bits >> significance * 16);
+        return order.isByteSwapped() ? Short.reverseBytes(word) : word;
+    }
+
+    /**
+     * Encodes a value into register words.
+     *
+     * @param bits the bits of the value
+     * @param count the number of registers of the value
+     * @param order the register order
+     * @param words the buffer the words are written to
+     * @param index the index of the first word
+     * @return the number of words
+     */
+    static int encode(long bits, int count, RegisterOrder order, short[] words, int index) {
+        for (int i = 0; i < count; i++) {
+            words[index + i] = word(bits, count, i, order);
+        }
+        return count;
+    }
+
+    /**
+     * Encodes a value into register words, most significant first.
+     *
+     * @param value the value
+     * @param mdType the modbus data type format
+     * @param words the buffer the words are written to
+     * @param index the index of the first word
+     * @return the number of words
+     */
+    static int encode(Number value, ModbusDataType mdType, short[] words, int index) {
+        return encode(toBits(value, mdType), mdType.getRegisterCount(), RegisterOrder.BIG_ENDIAN,
+                words, index);
+    }
+}
@@ -0,0 +1,50 @@
+package modbus.slave;
+
+/**
+ * The Enum RegisterOrder responsible for the order of the bytes and the words of the
+ * values which take several registers. The letters name the bytes of a four byte value,
+ * from the most significant A to the least significant D.
+ */
+public enum RegisterOrder {
+
+    /**
+     * The most significant word and byte first, ABCD, as modbus4j encodes values.
+     */
+    BIG_ENDIAN(false, false),
+
+    /**
+     * The least significant word first, with the most significant byte of each word first,
+     * CDAB.
+     */
+    WORD_SWAPPED(true, false),
+
+    /**
+     * The most significant word first, with the least significant byte of each word first,
+     * BADC.
+     */
+    BYTE_SWAPPED(false, true),
+
+    /**
+     * The least significant word and byte first, DCBA.
+     */
+    LITTLE_ENDIAN(true, true);
+
+
+    private final boolean wordSwap;
+
+    private final boolean byteSwap;
+
+    RegisterOrder(boolean wordSwap, boolean byteSwap) {
+        this.wordSwap = wordSwap;
+        this.byteSwap = byteSwap;
+    }
+
+    public boolean isWordSwapped() {
+        return wordSwap;
+    }
+
+    public boolean isByteSwapped() {
+        return byteSwap;
+    }
+
+}
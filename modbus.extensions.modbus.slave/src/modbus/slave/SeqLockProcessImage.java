@@ -0,0 +1,467 @@
+package modbus.slave;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.serotonin.modbus4j.ProcessImage;
+import com.serotonin.modbus4j.code.RegisterRange;
+import com.serotonin.modbus4j.exception.IllegalDataAddressException;
+
+/**
+ * The Class SeqLockProcessImage, a process image whose register banks are primitive arrays
+ * split in blocks of 64 registers, each guarded by a sequence counter. Writers take a lock
+ * and make the counters of the blocks they change odd while they write them, so a value
+ * spanning several registers, even across blocks, is published at once. Readers never
+ * lock: they read the counters, the registers and the counters again, retrying if a
+ * write happened in between.
+ * <p>
+ * The register words are kept in atomic arrays, whose volatile reads keep the register
+ * reads between the two reads of the counters. Only the range reads of this class, used by
+ * the transports of the slave library, see multi-register values whole. The modbus4j
+ * TcpSlave reads one register at a time through {@link #getInputRegister(int)}, so a
+ * master served by it may still see a value half updated.
+ * <p>
+ * Registers which were never set are invalid addresses. Blocks are allocated when their
+ * first register is set.
+ */
+public class SeqLockProcessImage
+        implements ProcessImage {
+
+    /** The number of addresses of a bank. */
+    private static final int ADDRESSES = 1 << 16;
+    /** The log2 of the number of registers of a block. */
+    private static final int BLOCK_SHIFT = 6;
+    /** The number of blocks of a bank. */
+    private static final int BLOCKS = ADDRESSES >> BLOCK_SHIFT;
+    /** The mask of the register of an address within its block. */
+    private static final int BLOCK_MASK = (1 << BLOCK_SHIFT) - 1;
+    /** The index of the sequence counter in a block. */
+    private static final int SEQUENCE = 0;
+    /** The index of the mask of the registers which were set in a block. */
+    private static final int DEFINED = 1;
+    /** The index of the first word of a block, each word holds four registers. */
+    private static final int WORDS = 2;
+    /** The largest value a write encodes - registers. */
+    private static final int MAX_VALUE_REGISTERS = 4;
+
+    /** The slave id. */
+    private final int slaveId;
+    /** The holding register blocks. */
+    private final AtomicReferenceArray<AtomicLongArray> holdingRegisters =
+            new AtomicReferenceArray<AtomicLongArray>(BLOCKS);
+    /** The input register blocks. */
+    private final AtomicReferenceArray<AtomicLongArray> inputRegisters =
+            new AtomicReferenceArray<AtomicLongArray>(BLOCKS);
+    /** The coils, a bit per address. */
+    private final AtomicLongArray coils = new AtomicLongArray(ADDRESSES / 64);
+    /** The coils which were set, a bit per address. */
+    private final AtomicLongArray definedCoils = new AtomicLongArray(ADDRESSES / 64);
+    /** The discrete inputs, a bit per address. */
+    private final AtomicLongArray inputs = new AtomicLongArray(ADDRESSES / 64);
+    /** The discrete inputs which were set, a bit per address. */
+    private final AtomicLongArray definedInputs = new AtomicLongArray(ADDRESSES / 64);
+    /** The lock of the writers. */
+    private final Object writeLock = new Object();
+    /** The words of the value being written, guarded by the write lock. */
+    private final short[] encoded = new short[MAX_VALUE_REGISTERS];
+    /** The words of the block being written, grown as needed, guarded by the write lock. */
+    private short[] blockWords = new short[0];
+
+    public SeqLockProcessImage(int slaveId) {
+        this.slaveId = slaveId;
+    }
+
+    @Override
+    public int getSlaveId() {
+        return slaveId;
+    }
+
+    /**
+     * Sets a register of any numeric type, as BasicProcessImage does.
+     *
+     * @param range the register type
+     * @param offset the register address
+     * @param mdType the modbus data type format
+     * @param value the value
+     */
+    public void setRegister(int range, int offset, ModbusDataType mdType, Number value) {
+        synchronized (writeLock) {
+            writeWords(getBank(range), offset, encoded, RegisterEncoder.encode(value, mdType, encoded, 0));
+        }
+    }
+
+    /**
+     * Sets a register given as the bits of its data type, without allocating.
+     *
+     * @param range the register type
+     * @param offset the register address
+     * @param bits the bits of the value
+     * @param count the number of registers of the value
+     * @param order the register order
+     */
+    public void setRegister(int range, int offset, long bits, int count, RegisterOrder order) {
+        final AtomicReferenceArray<AtomicLongArray> bank = getBank(range);
+        synchronized (writeLock) {
+            writeWords(bank, offset, encoded, RegisterEncoder.encode(bits, count, order, encoded, 0));
+        }
+    }
+
+    /**
+     * Sets several registers of any numeric type at once. Each value is published whole,
+     * and the writer lock is taken once for all of them.
+     *
+     * @param range the register type
+     * @param offsets the register address of each value
+     * @param values the values
+     * @param count the number of values
+     * @param mdType the modbus data type format
+     * @param orders the register order by address, null or with null entries for big endian
+     */
+    public void setRegisters(int range, int[] offsets, long[] values, int count, ModbusDataType mdType,
+                             RegisterOrder[] orders) {
+        final AtomicReferenceArray<AtomicLongArray> bank = getBank(range);
+        final int registers = mdType.getRegisterCount();
+        synchronized (writeLock) {
+            for (int i = 0; i < count; i++) {
+                final RegisterOrder order = orders != null && orders[offsets[i]] != null
+                        ? orders[offsets[i]]
+                        : RegisterOrder.BIG_ENDIAN;
+                writeWords(bank, offsets[i], encoded, RegisterEncoder.encode(
+                        RegisterEncoder.toBits(values[i], mdType), registers, order, encoded, 0));
+            }
+        }
+    }
+
+    /**
+     * Sets consecutive registers at once.
+     *
+     * @param range the register type
+     * @param offset the address of the first register
+     * @param words the register values
+     * @param count the number of registers
+     */
+    public void setRegisters(int range, int offset, short[] words, int count) {
+        synchronized (writeLock) {
+            writeWords(getBank(range), offset, words, count);
+        }
+    }
+
+    /**
+     * Sets a block of consecutive integral values, published at once.
+     *
+     * @param range the register type
+     * @param offset the address of the first register
+     * @param values the values
+     * @param mdType the modbus data type format of every value
+     * @param orders the register order by address, null or with null entries for big endian
+     */
+    public void setRegisterBlock(int range, int offset, long[] values, ModbusDataType mdType,
+                                 RegisterOrder[] orders) {
+        final AtomicReferenceArray<AtomicLongArray> bank = getBank(range);
+        final int registers = mdType.getRegisterCount();
+        synchronized (writeLock) {
+            final short[] words = getBlockWords(values.length * registers);
+            int count = 0;
+            for (long value : values) {
+                final RegisterOrder order = orders != null && orders[offset + count] != null
+                        ? orders[offset + count]
+                        : RegisterOrder.BIG_ENDIAN;
+                count += RegisterEncoder.encode(RegisterEncoder.toBits(value, mdType), registers, order,
+                        words, count);
+            }
+            writeWords(bank, offset, words, count);
+        }
+    }
+
+    /**
+     * Sets a block of consecutive floating point values, published at once.
+     *
+     * @param range the register type
+     * @param offset the address of the first register
+     * @param values the values
+     * @param mdType the modbus data type format of every value
+     * @param orders the register order by address, null or with null entries for big endian
+     */
+    public void setRegisterBlock(int range, int offset, double[] values, ModbusDataType mdType,
+                                 RegisterOrder[] orders) {
+        final AtomicReferenceArray<AtomicLongArray> bank = getBank(range);
+        final int registers = mdType.getRegisterCount();
+        synchronized (writeLock) {
+            final short[] words = getBlockWords(values.length * registers);
+            int count = 0;
+            for (double value : values) {
+                final RegisterOrder order = orders != null && orders[offset + count] != null
+                        ? orders[offset + count]
+                        : RegisterOrder.BIG_ENDIAN;
+                count += RegisterEncoder.encode(RegisterEncoder.toBits(value, mdType), registers, order,
+                        words, count);
+            }
+            writeWords(bank, offset, words, count);
+        }
+    }
+
+    /**
+     * Sets a block of consecutive coils or discrete inputs under one lock.
+     *
+     * @param range the bit type, coil status or input status
+     * @param offset the address of the first bit
+     * @param values the values
+     */
+    public void setBitBlock(int range, int offset, boolean[] values) {
+        checkRange(offset, values.length);
+        final boolean coil = isCoilRange(range);
+        synchronized (writeLock) {
+            for (int i = 0; i < values.length; i++) {
+                writeBit(coil, offset + i, values[i]);
+            }
+        }
+    }
+
+    /**
+     * Sets a block of consecutive coils or discrete inputs under one lock.
+     *
+     * @param range the bit type, coil status or input status
+     * @param offset the address of the first bit
+     * @param values the values, bit i is written to the address offset + i
+     * @param count the number of bits
+     */
+    public void setBitBlock(int range, int offset, BitSet values, int count) {
+        checkRange(offset, count);
+        final boolean coil = isCoilRange(range);
+        synchronized (writeLock) {
+            for (int i = 0; i < count; i++) {
+                writeBit(coil, offset + i, values.get(i));
+            }
+        }
+    }
+
+    private short[] getBlockWords(int count) {
+        if (blockWords.length < count) {
+            blockWords = new short[count];
+        }
+        return blockWords;
+    }
+
+    private static boolean isCoilRange(int range) {
+        if (range == RegisterRange.COIL_STATUS) {
+            return true;
+        } else if (range == RegisterRange.INPUT_STATUS) {
+            return false;
+        }
+        throw new IllegalArgumentException("Not a bit range: " + range);
+    }
+
+    /**
+     * Reads consecutive registers at once into a buffer, never blocking the writers.
+     *
+     * @param range the register type
+     * @param offset the address of the first register
+     * @param count the number of registers
+     * @param buffer the buffer the registers are written to
+     * @throws IllegalDataAddressException a register was never set
+     */
+    public void readRegisters(int range, int offset, int count, ByteBuffer buffer)
+            throws IllegalDataAddressException {
+        checkRange(offset, count);
+        final AtomicReferenceArray<AtomicLongArray> bank = getBank(range);
+        final int firstBlock = offset >> BLOCK_SHIFT;
+        final int lastBlock = offset + count - 1 >> BLOCK_SHIFT;
+        final int start = buffer.position();
+        while (true) {
+            long before = 0;
+            boolean writing = false;
+            for (int b = firstBlock; b <= lastBlock; b++) {
+                final AtomicLongArray block = bank.get(b);
+                if (block == null) {
+                    throw new IllegalDataAddressException();
+                }
+                final long sequence = block.get(SEQUENCE);
+                writing |= (sequence & 1) != 0;
+                before += sequence;
+            }
+            if (writing) {
+                Thread.yield();
+                continue;
+            }
+
+            buffer.position(start);
+            for (int address = offset; address < offset + count; address++) {
+                final AtomicLongArray block = bank.get(address >> BLOCK_SHIFT);
+                final int register = address & BLOCK_MASK;
+                if ((block.get(DEFINED) & 1L << register) == 0) {
+                    throw new IllegalDataAddressException();
+                }
+                buffer.putShort((short) (block.get(WORDS + (register >> 2)) >>> (register & 3) * 16));
+            }
+
+            // the counters only grow, so an unchanged sum means no block was written
+            long after = 0;
+            for (int b = firstBlock; b <= lastBlock; b++) {
+                after += bank.get(b).get(SEQUENCE);
+            }
+            if (after == before) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes consecutive registers, the caller holds the write lock.
+     */
+    private void writeWords(AtomicReferenceArray<AtomicLongArray> bank, int offset, short[] words, int count) {
+        checkRange(offset, count);
+        final int firstBlock = offset >> BLOCK_SHIFT;
+        final int lastBlock = offset + count - 1 >> BLOCK_SHIFT;
+        for (int b = firstBlock; b <= lastBlock; b++) {
+            AtomicLongArray block = bank.get(b);
+            if (block == null) {
+                block = new AtomicLongArray(WORDS + (BLOCK_MASK + 1) / 4);
+                bank.set(b, block);
+            }
+            block.set(SEQUENCE, block.get(SEQUENCE) + 1);
+        }
+
+        for (int i = 0; i < count; i++) {
+            final AtomicLongArray block = bank.get(offset + i >> BLOCK_SHIFT);
+            final int register = offset + i & BLOCK_MASK;
+            final int word = WORDS + (register >> 2);
+            final int shift = (register & 3) * 16;
+            block.lazySet(word, block.get(word) & ~(0xFFFFL << shift) | (words[i] & 0xFFFFL) << shift);
+            block.lazySet(DEFINED, block.get(DEFINED) | 1L << register);
+        }
+
+        for (int b = firstBlock; b <= lastBlock; b++) {
+            final AtomicLongArray block = bank.get(b);
+            block.lazySet(SEQUENCE, block.get(SEQUENCE) + 1);
+        }
+    }
+
+    private short readRegister(AtomicReferenceArray<AtomicLongArray> bank, int offset)
+            throws IllegalDataAddressException {
+        if (offset < 0 || offset >= ADDRESSES) {
+            throw new IllegalDataAddressException();
+        }
+        final AtomicLongArray block = bank.get(offset >> BLOCK_SHIFT);
+        final int register = offset & BLOCK_MASK;
+        if (block == null || (block.get(DEFINED) & 1L << register) == 0) {
+            throw new IllegalDataAddressException();
+        }
+        return (short) (block.get(WORDS + (register >> 2)) >>> (register & 3) * 16);
+    }
+
+    private AtomicReferenceArray<AtomicLongArray> getBank(int range) {
+        if (range == RegisterRange.HOLDING_REGISTER) {
+            return holdingRegisters;
+        } else if (range == RegisterRange.INPUT_REGISTER) {
+            return inputRegisters;
+        }
+        throw new IllegalArgumentException("Not a register range: " + range);
+    }
+
+    private static void checkRange(int offset, int count) {
+        if (offset < 0 || count < 0 || offset + count > ADDRESSES) {
+            throw new IllegalArgumentException("Invalid register range: " + offset + ", " + count);
+        }
+    }
+
+    /**
+     * Writes a coil or a discrete input, the caller holds the write lock.
+     */
+    private void writeBit(boolean coil, int offset, boolean value) {
+        final AtomicLongArray bits = coil ? coils : inputs;
+        final AtomicLongArray defined = coil ? definedCoils : definedInputs;
+        final int index = offset >> 6;
+        final long bit = 1L << offset;
+        bits.set(index, value ? bits.get(index) | bit : bits.get(index) & ~bit);
+        defined.set(index, defined.get(index) | bit);
+    }
+
+    private void setBit(boolean coil, int offset, boolean value) {
+        checkRange(offset, 1);
+        synchronized (writeLock) {
+            writeBit(coil, offset, value);
+        }
+    }
+
+    private static boolean getBit(AtomicLongArray bits, AtomicLongArray defined, int offset)
+            throws IllegalDataAddressException {
+        if (offset < 0 || offset >= ADDRESSES || (defined.get(offset >> 6) & 1L << offset) == 0) {
+            throw new IllegalDataAddressException();
+        }
+        return (bits.get(offset >> 6) & 1L << offset) != 0;
+    }
+
+    @Override
+    public boolean getCoil(int offset) throws IllegalDataAddressException {
+        return getBit(coils, definedCoils, offset);
+    }
+
+    @Override
+    public void setCoil(int offset, boolean value) {
+        setBit(true, offset, value);
+    }
+
+    @Override
+    public void writeCoil(int offset, boolean value) throws IllegalDataAddressException {
+        if (offset < 0 || offset >= ADDRESSES) {
+            throw new IllegalDataAddressException();
+        }
+        setCoil(offset, value);
+    }
+
+    @Override
+    public boolean getInput(int offset) throws IllegalDataAddressException {
+        return getBit(inputs, definedInputs, offset);
+    }
+
+    @Override
+    public void setInput(int offset, boolean value) {
+        setBit(false, offset, value);
+    }
+
+    @Override
+    public short getHoldingRegister(int offset) throws IllegalDataAddressException {
+        return readRegister(holdingRegisters, offset);
+    }
+
+    @Override
+    public void setHoldingRegister(int offset, short value) {
+        synchronized (writeLock) {
+            encoded[0] = value;
+            writeWords(holdingRegisters, offset, encoded, 1);
+        }
+    }
+
+    @Override
+    public void writeHoldingRegister(int offset, short value) throws IllegalDataAddressException {
+        if (offset < 0 || offset >= ADDRESSES) {
+            throw new IllegalDataAddressException();
+        }
+        setHoldingRegister(offset, value);
+    }
+
+    @Override
+    public short getInputRegister(int offset) throws IllegalDataAddressException {
+        return readRegister(inputRegisters, offset);
+    }
+
+    @Override
+    public void setInputRegister(int offset, short value) {
+        synchronized (writeLock) {
+            encoded[0] = value;
+            writeWords(inputRegisters, offset, encoded, 1);
+        }
+    }
+
+    @Override
+    public byte getExceptionStatus() {
+        return 0;
+    }
+
+    @Override
+    public byte[] getReportSlaveIdData() {
+        return new byte[0];
+    }
+}
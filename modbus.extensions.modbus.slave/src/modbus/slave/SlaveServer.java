@@ -0,0 +1,17 @@
+package modbus.slave;
+
+import java.io.IOException;
+
+/**
+ * The Interface SlaveServer, a modbus tcp server answering the requests of the masters
+ * against the process images of the slave library.
+ */
+interface SlaveServer {
+
+    /**
+     * Binds the listening port and starts serving connections in the background.
+     *
+     * @throws IOException the port could not be bound
+     */
+    void start() throws IOException;
+}
@@ -0,0 +1,25 @@
+package modbus.slave;
+
+/**
+ * The Enum SlaveTransport responsible for choosing how the modbus tcp connections of the
+ * slaves are served.
+ */
+public enum SlaveTransport {
+
+    /**
+     * The modbus4j tcp slave, which serves every connection with its own blocking thread.
+     */
+    MODBUS4J,
+
+    /**
+     * The non-blocking server, which serves every connection with a fixed number of selector
+     * threads, however many connections are open.
+     */
+    NIO,
+
+    /**
+     * The blocking server, which serves every connection with its own virtual thread, or
+     * with a platform thread on a JVM without virtual threads.
+     */
+    VIRTUAL_THREADS
+}
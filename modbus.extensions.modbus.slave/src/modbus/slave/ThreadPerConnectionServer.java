@@ -0,0 +1,169 @@
+package modbus.slave;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The Class ThreadPerConnectionServer, a blocking modbus tcp server which serves every
+ * connection with its own thread. On a JVM with virtual threads, Java 21 and later, the
+ * connections and the accepting loop run on virtual threads, so thousands of mostly idle
+ * masters cost kilobytes of stack each instead of megabytes. Otherwise platform threads
+ * are used. The frame buffers of a connection are allocated once, when it is accepted.
+ */
+final class ThreadPerConnectionServer
+        implements SlaveServer {
+
+    /** The length of the MBAP header - bytes. */
+    private static final int HEADER = 7;
+    /** The largest modbus tcp frame - bytes. */
+    private static final int MAX_FRAME = HEADER + ModbusRequestHandler.MAX_PDU;
+
+    /** The listening port. */
+    private final int port;
+    /** The handler answering the requests. */
+    private final ModbusRequestHandler handler;
+    /** The executor running a task per connection. */
+    private final ExecutorService executor;
+
+    /**
+     * Instantiates a new thread per connection server.
+     *
+     * @param port the listening port
+     * @param handler the handler answering the requests
+     */
+    ThreadPerConnectionServer(int port, ModbusRequestHandler handler) {
+        this.port = port;
+        this.handler = handler;
+        this.executor = newExecutor();
+    }
+
+    /**
+     * Creates an executor starting a virtual thread per task, looked up by reflection as
+     * the library is compiled for Java 7, or a platform thread per task if there are no
+     * virtual threads.
+     *
+     * @return the executor
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads are not available, serving modbus connections"
+                    + " with platform threads");
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "Modbus Connection");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Binds the listening port and starts accepting connections.
+     *
+     * @throws IOException the port could not be bound
+     */
+    @Override
+    public void start() throws IOException {
+        final ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept(server);
+            }
+        });
+    }
+
+    /**
+     * Accepts connections, serving each one with its own task.
+     *
+     * @param server the listening socket
+     */
+    private void accept(ServerSocket server) {
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                System.err.println("Modbus connection could not be accepted: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Answers the frames of a connection until the master closes it or sends a malformed
+     * frame.
+     *
+     * @param socket the connection
+     */
+    private void serve(Socket socket) {
+        final byte[] request = new byte[MAX_FRAME];
+        final ByteBuffer requestBuffer = ByteBuffer.wrap(request);
+        final ByteBuffer response = ByteBuffer.allocate(MAX_FRAME);
+        try {
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            while (readFrame(in, request)) {
+                final int length = requestBuffer.getShort(4) & 0xFFFF;
+                response.clear();
+                response.putInt(requestBuffer.getInt(0));
+                response.putShort((short) 0);
+                response.put(request[6]);
+                handler.handle(request[6] & 0xFF, requestBuffer, HEADER, length - 1, response);
+                response.putShort(4, (short) (response.position() - 6));
+                out.write(response.array(), 0, response.position());
+            }
+        } catch (IOException e) {
+            // the connection failed or the frame was malformed
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    /**
+     * Reads a frame.
+     *
+     * @param in the stream of the connection
+     * @param frame the buffer the frame is read into
+     * @return true if a frame was read, false if the master closed the connection
+     * @throws IOException the connection failed or the frame is malformed
+     */
+    private static boolean readFrame(DataInputStream in, byte[] frame) throws IOException {
+        final int first = in.read();
+        if (first < 0) {
+            return false;
+        }
+        frame[0] = (byte) first;
+        in.readFully(frame, 1, HEADER - 1);
+        final int length = (frame[4] & 0xFF) << 8 | frame[5] & 0xFF;
+        if (length < 2 || length > ModbusRequestHandler.MAX_PDU + 1) {
+            throw new IOException("invalid frame length " + length);
+        }
+        in.readFully(frame, HEADER, length - 1);
+        return true;
+    }
+}
@@ -14,6 +14,6 @@ public class InvalidSlaveException extends
      */
     @Override
     public String getMessage() {
-        return "Slave ID zero is not valid, it has to be higher than zero";
+        return "Slave ID is not valid, it has to be between 1 and 247";
     }
 }
@@ -0,0 +1,71 @@
+package modbus.slave;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * The Class RegisterEncoderTest.
+ */
+public class RegisterEncoderTest {
+
+    private static final long INT_BITS = 0x11223344L;
+
+    private static final long LONG_BITS = 0x1122334455667788L;
+
+    @Test
+    public void encodesFourBytesInEachOrder() {
+        assertWords(INT_BITS, 2, RegisterOrder.BIG_ENDIAN, 0x1122, 0x3344);
+        assertWords(INT_BITS, 2, RegisterOrder.WORD_SWAPPED, 0x3344, 0x1122);
+        assertWords(INT_BITS, 2, RegisterOrder.BYTE_SWAPPED, 0x2211, 0x4433);
+        assertWords(INT_BITS, 2, RegisterOrder.LITTLE_ENDIAN, 0x4433, 0x2211);
+    }
+
+    @Test
+    public void encodesEightBytesInEachOrder() {
+        assertWords(LONG_BITS, 4, RegisterOrder.BIG_ENDIAN, 0x1122, 0x3344, 0x5566, 0x7788);
+        assertWords(LONG_BITS, 4, RegisterOrder.WORD_SWAPPED, 0x7788, 0x5566, 0x3344, 0x1122);
+        assertWords(LONG_BITS, 4, RegisterOrder.BYTE_SWAPPED, 0x2211, 0x4433, 0x6655, 0x8877);
+        assertWords(LONG_BITS, 4, RegisterOrder.LITTLE_ENDIAN, 0x8877, 0x6655, 0x4433, 0x2211);
+    }
+
+    @Test
+    public void wordOrderDoesNotMoveSingleRegister() {
+        assertWords(0x1234, 1, RegisterOrder.WORD_SWAPPED, 0x1234);
+        assertWords(0x1234, 1, RegisterOrder.LITTLE_ENDIAN, 0x3412);
+    }
+
+    @Test
+    public void keepsOnlyLowBitsOfNegativeIntegers() {
+        final long bits = RegisterEncoder.toBits(-2L, ModbusDataType.INT);
+        assertWords(bits, 2, RegisterOrder.BIG_ENDIAN, 0xFFFF, 0xFFFE);
+        assertWords(bits, 2, RegisterOrder.WORD_SWAPPED, 0xFFFE, 0xFFFF);
+    }
+
+    @Test
+    public void convertsValuesToTheBitsOfTheirType() {
+        assertEquals(0x3F800000L, RegisterEncoder.toBits(1L, ModbusDataType.FLOAT));
+        assertEquals(0x3F800000L, RegisterEncoder.toBits(1.0, ModbusDataType.FLOAT));
+        assertEquals(Double.doubleToLongBits(-2.5), RegisterEncoder.toBits(-2.5, ModbusDataType.DOUBLE));
+        assertEquals(-2L, RegisterEncoder.toBits(-2.9, ModbusDataType.LONG));
+        assertEquals(Double.doubleToLongBits(3), RegisterEncoder.toBits(Integer.valueOf(3), ModbusDataType.DOUBLE));
+    }
+
+    @Test
+    public void encodesNumbersBigEndianAtIndex() {
+        final short[] words = new short[4];
+        assertEquals(2, RegisterEncoder.encode(Integer.valueOf((int) INT_BITS), ModbusDataType.INT, words, 1));
+        assertArrayEquals(new short[] {0, 0x1122, 0x3344, 0 }, words);
+    }
+
+    private static void assertWords(long bits, int count, RegisterOrder order, int... expected) {
+        final short[] words = new short[count];
+        assertEquals(count, RegisterEncoder.encode(bits, count, order, words, 0));
+        final short[] expectedWords = new short[expected.length];
+        for (int i = 0; i < expected.length; i++) {
+            expectedWords[i] = (short) expected[i];
+        }
+        assertArrayEquals(expectedWords, words);
+    }
+}
@@ -0,0 +1,38 @@
+package modbus.slave;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.serotonin.modbus4j.code.RegisterRange;
+import com.serotonin.modbus4j.exception.IllegalDataAddressException;
+
+/**
+ * The Class SeqLockProcessImageTest.
+ */
+public class SeqLockProcessImageTest {
+
+    @Test
+    public void readsRegistersInTheirOrder() throws IllegalDataAddressException {
+        final SeqLockProcessImage image = new SeqLockProcessImage(1);
+        image.setRegister(RegisterRange.HOLDING_REGISTER, 10, 0x11223344L, 2, RegisterOrder.WORD_SWAPPED);
+        image.setRegister(RegisterRange.HOLDING_REGISTER, 12, 0x11223344L, 2, RegisterOrder.LITTLE_ENDIAN);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+        image.readRegisters(RegisterRange.HOLDING_REGISTER, 10, 4, buffer);
+        assertArrayEquals(new byte[] {0x33, 0x44, 0x11, 0x22, 0x44, 0x33, 0x22, 0x11 }, buffer.array());
+        assertEquals(0x3344, image.getHoldingRegister(10));
+    }
+
+    @Test
+    public void storesNumbersBigEndian() throws IllegalDataAddressException {
+        final SeqLockProcessImage image = new SeqLockProcessImage(1);
+        image.setRegister(RegisterRange.INPUT_REGISTER, 0, ModbusDataType.FLOAT, Float.valueOf(1f));
+
+        assertEquals(0x3F80, image.getInputRegister(0));
+        assertEquals(0, image.getInputRegister(1));
+    }
+}